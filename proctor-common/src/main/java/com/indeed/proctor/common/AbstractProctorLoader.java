@@ -24,11 +24,18 @@ public abstract class AbstractProctorLoader extends DataLoadingTimerTask impleme
     private Proctor current = null;
     @Nullable
     private Audit lastAudit = null;
+    /**
+     * The last Proctor {@link #doLoad()} constructed, whose choosers are reused for unchanged tests
+     */
+    @Nullable
+    private Proctor lastConstructed = null;
     @Nullable
     private String lastLoadErrorMessage= "load never attempted";
     @Nonnull
     private final FunctionMapper functionMapper;
     private final ProvidedContext providedContext;
+    @Nullable
+    private final ContextSchema contextSchema;
 
     @Nullable
     private AbstractProctorDiffReporter diffReporter = new AbstractProctorDiffReporter();
@@ -41,6 +48,7 @@ public abstract class AbstractProctorLoader extends DataLoadingTimerTask impleme
             LOGGER.debug("providedContext Objects missing necessary functions for validation, rules will not be tested.");
         }
         this.functionMapper = functionMapper;
+        this.contextSchema = createContextSchema(specification);
     }
 
     /**
@@ -56,6 +64,16 @@ public abstract class AbstractProctorLoader extends DataLoadingTimerTask impleme
         return ProctorUtils.convertContextToTestableMap(specification.getProvidedContext(), getRuleVerificationContext());
     }
 
+    /**
+     * user can override this function to declare the context in code rather than in the specification
+     *
+     * @return the schema rules are compiled against, or null to resolve context variables by name
+     */
+    @Nullable
+    protected ContextSchema createContextSchema(final ProctorSpecification specification) {
+        return ContextSchema.of(specification.getProvidedContext());
+    }
+
     @Nullable
     abstract TestMatrixArtifact loadTestMatrix() throws IOException, MissingTestMatrixException;
     @Nonnull
@@ -102,6 +120,18 @@ public abstract class AbstractProctorLoader extends DataLoadingTimerTask impleme
             throw new MissingTestMatrixException("Failed to load Test Matrix from " + getSource());
         }
 
+        final Audit newAudit = testMatrix.getAudit();
+        if (lastAudit != null) {
+            final Audit audit = Preconditions.checkNotNull(newAudit, "Missing audit");
+            if(lastAudit.getVersion().equals(audit.getVersion())) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Not reloading " + getSource() + " test matrix definition because audit is unchanged: " + lastAudit.getVersion() + " @ " + lastAudit.getUpdatedDate() + " by " + lastAudit.getUpdatedBy());
+                }
+
+                return null;
+            }
+        }
+
         final ProctorLoadResult loadResult;
         if (requiredTests == null) {
             // Probably an absent specification.
@@ -116,21 +146,10 @@ public abstract class AbstractProctorLoader extends DataLoadingTimerTask impleme
             }
         }
 
-        final Audit newAudit = testMatrix.getAudit();
-        if (lastAudit != null) {
-            final Audit audit = Preconditions.checkNotNull(newAudit, "Missing audit");
-            if(lastAudit.getVersion().equals(audit.getVersion())) {
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Not reloading " + getSource() + " test matrix definition because audit is unchanged: " + lastAudit.getVersion() + " @ " + lastAudit.getUpdatedDate() + " by " + lastAudit.getUpdatedBy());
-                }
-
-                return null;
-            }
-        }
-
-        final Proctor proctor = Proctor.construct(testMatrix, loadResult, functionMapper);
+        final Proctor proctor = Proctor.construct(testMatrix, loadResult, functionMapper, lastConstructed, contextSchema);
         //  kind of lame to modify lastAudit here but current in load(), but the interface is a little constraining
         this.lastAudit = newAudit;
+        this.lastConstructed = proctor;
         return proctor;
     }
 
@@ -0,0 +1,102 @@
+package com.indeed.proctor.common;
+
+import com.google.common.collect.Maps;
+import com.indeed.proctor.common.model.ConsumableTestDefinition;
+import com.indeed.proctor.common.model.TestBucket;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Return value from {@link Proctor#determineTestGroups(List, List)}: the test buckets of many clients, stored as one
+ * column of buckets per test instead of one map per client.
+ */
+public class BatchProctorResult {
+    private final String matrixVersion;
+    @Nonnull
+    private final String[] testNames;
+    @Nonnull
+    private final Map<String, Integer> testIndices;
+    /**
+     * buckets[test][row]; null where the test does not apply to the client
+     */
+    @Nonnull
+    private final TestBucket[][] buckets;
+    @Nonnull
+    private final Map<String, ConsumableTestDefinition> testDefinitions;
+    @Nonnull
+    private final Map<String, String> testVersions;
+
+    BatchProctorResult(
+            final String matrixVersion,
+            @Nonnull final String[] testNames,
+            @Nonnull final TestBucket[][] buckets,
+            @Nonnull final Map<String, ConsumableTestDefinition> testDefinitions,
+            @Nonnull final Map<String, String> testVersions
+    ) {
+        this.matrixVersion = matrixVersion;
+        this.testNames = testNames;
+        this.buckets = buckets;
+        this.testDefinitions = testDefinitions;
+        this.testVersions = testVersions;
+        this.testIndices = Maps.newHashMapWithExpectedSize(testNames.length);
+        for (int i = 0; i < testNames.length; i++) {
+            testIndices.put(testNames[i], i);
+        }
+    }
+
+    public String getMatrixVersion() {
+        return matrixVersion;
+    }
+
+    /**
+     * @return the number of clients, in the order they were passed in
+     */
+    public int size() {
+        return buckets.length == 0 ? 0 : buckets[0].length;
+    }
+
+    @Nonnull
+    public List<String> getTestNames() {
+        return Collections.unmodifiableList(Arrays.asList(testNames));
+    }
+
+    @Nullable
+    public TestBucket getBucket(final int row, final int testIndex) {
+        return buckets[testIndex][row];
+    }
+
+    @Nullable
+    public TestBucket getBucket(final int row, @Nonnull final String testName) {
+        final Integer testIndex = testIndices.get(testName);
+        return testIndex == null ? null : buckets[testIndex][row];
+    }
+
+    /**
+     * @return the buckets of every client for one test; null entries mean the test does not apply to that client
+     */
+    @Nonnull
+    public List<TestBucket> getColumn(@Nonnull final String testName) {
+        final Integer testIndex = testIndices.get(testName);
+        if (testIndex == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(buckets[testIndex]));
+    }
+
+    /**
+     * @return the result of a single client, as {@link Proctor#determineTestGroups(Identifiers, Map, Map)} would return it
+     */
+    @Nonnull
+    public ProctorResult getResult(final int row) {
+        final TestBucket[] rowBuckets = new TestBucket[testNames.length];
+        for (int i = 0; i < testNames.length; i++) {
+            rowBuckets[i] = buckets[i][row];
+        }
+        return new ProctorResult(matrixVersion, testNames, rowBuckets, testDefinitions, testVersions);
+    }
+}
@@ -0,0 +1,260 @@
+package com.indeed.proctor.common;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The variables a context provides, with their types, each assigned a slot.
+ * Rules compiled against a schema read those variables from an array by slot instead of looking them up by name
+ * on every evaluation. Contexts built with {@link #newValues()} fill that array as they are populated; any other
+ * context map is copied into it once per request.
+ *
+ * The types are the ones of {@link ProctorSpecification#getProvidedContext()}: primitive names like
+ * <code>int</code> or <code>string</code>, or class names. Values of other types are rejected by {@link Values}.
+ */
+public final class ContextSchema {
+    private static final Logger LOGGER = Logger.getLogger(ContextSchema.class);
+
+    /**
+     * Marks a slot whose variable the context doesn't have
+     */
+    static final Object ABSENT = new Object();
+
+    private static final Map<String, Class<?>> PRIMITIVE_TYPES = ImmutableMap.<String, Class<?>>builder()
+            .put("int", Integer.class)
+            .put("integer", Integer.class)
+            .put("long", Long.class)
+            .put("bool", Boolean.class)
+            .put("boolean", Boolean.class)
+            .put("short", Short.class)
+            .put("string", String.class)
+            .put("double", Double.class)
+            .put("byte", Byte.class)
+            .build();
+
+    @Nonnull
+    private final String[] variables;
+    /**
+     * The type of each slot, or null where any value is accepted
+     */
+    @Nonnull
+    private final Class<?>[] types;
+    @Nonnull
+    private final Map<String, Integer> slotIndex;
+
+    private ContextSchema(@Nonnull final String[] variables, @Nonnull final Class<?>[] types) {
+        this.variables = variables;
+        this.types = types;
+        final ImmutableMap.Builder<String, Integer> slotIndex = ImmutableMap.builder();
+        for (int i = 0; i < variables.length; i++) {
+            slotIndex.put(variables[i], i);
+        }
+        this.slotIndex = slotIndex.build();
+    }
+
+    /**
+     * @param providedContext the type of each variable, as in {@link ProctorSpecification#getProvidedContext()}
+     * @return the schema, or null if no variable is declared
+     */
+    @Nullable
+    public static ContextSchema of(@Nullable final Map<String, String> providedContext) {
+        if (providedContext == null || providedContext.isEmpty()) {
+            return null;
+        }
+        final String[] variables = providedContext.keySet().toArray(new String[providedContext.size()]);
+        Arrays.sort(variables);
+        final Class<?>[] types = new Class<?>[variables.length];
+        for (int i = 0; i < variables.length; i++) {
+            types[i] = resolveType(variables[i], providedContext.get(variables[i]));
+        }
+        return new ContextSchema(variables, types);
+    }
+
+    @Nullable
+    private static Class<?> resolveType(@Nonnull final String variable, @Nullable final String typeName) {
+        if (typeName == null) {
+            return null;
+        }
+        final Class<?> primitiveType = PRIMITIVE_TYPES.get(typeName.toLowerCase());
+        if (primitiveType != null) {
+            return primitiveType;
+        }
+        try {
+            return Class.forName(typeName);
+        } catch (@Nonnull final ClassNotFoundException e) {
+            // char and character included, rule verification uses strings for those
+            LOGGER.debug("Not checking the type of " + variable + ", " + typeName + " is not a class");
+            return null;
+        }
+    }
+
+    /**
+     * @return the slot of the variable, or -1 if the schema doesn't declare it
+     */
+    int getSlot(@Nullable final String variable) {
+        final Integer slot = slotIndex.get(variable);
+        return slot == null ? -1 : slot;
+    }
+
+    public int size() {
+        return variables.length;
+    }
+
+    @Nonnull
+    public List<String> getVariables() {
+        return ImmutableList.copyOf(variables);
+    }
+
+    /**
+     * @return an empty context whose declared variables go straight into their slots
+     */
+    @Nonnull
+    public Values newValues() {
+        return new Values();
+    }
+
+    /**
+     * @return the slots of the context; absent variables are {@link #ABSENT}
+     */
+    @Nonnull
+    Object[] toSlots(@Nonnull final Map<String, Object> context) {
+        if (context instanceof Values && ((Values) context).getSchema() == this) {
+            return ((Values) context).slots;
+        }
+        final Object[] slots = new Object[variables.length];
+        for (int i = 0; i < variables.length; i++) {
+            final Object value = context.get(variables[i]);
+            slots[i] = value != null || context.containsKey(variables[i]) ? value : ABSENT;
+        }
+        return slots;
+    }
+
+    /**
+     * A context for {@link Proctor#determineTestGroups} whose declared variables are kept by slot.
+     * Variables the schema doesn't declare are kept by name. Not thread-safe.
+     */
+    public final class Values extends AbstractMap<String, Object> {
+        @Nonnull
+        private final Object[] slots;
+        @Nullable
+        private Map<String, Object> undeclared;
+        private int size;
+
+        private Values() {
+            slots = new Object[variables.length];
+            Arrays.fill(slots, ABSENT);
+        }
+
+        @Nonnull
+        ContextSchema getSchema() {
+            return ContextSchema.this;
+        }
+
+        @Override
+        public Object get(final Object key) {
+            final Integer slot = slotIndex.get(key);
+            if (slot != null) {
+                final Object value = slots[slot];
+                return value == ABSENT ? null : value;
+            }
+            return undeclared == null ? null : undeclared.get(key);
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            final Integer slot = slotIndex.get(key);
+            if (slot != null) {
+                return slots[slot] != ABSENT;
+            }
+            return undeclared != null && undeclared.containsKey(key);
+        }
+
+        /**
+         * @throws IllegalArgumentException if the value is not of the variable's declared type
+         */
+        @Override
+        public Object put(final String key, final Object value) {
+            final Integer slot = slotIndex.get(key);
+            if (slot == null) {
+                if (undeclared == null) {
+                    undeclared = Maps.newHashMap();
+                }
+                if (!undeclared.containsKey(key)) {
+                    size++;
+                }
+                return undeclared.put(key, value);
+            }
+            final Class<?> type = types[slot];
+            if (value != null && type != null && !type.isInstance(value)) {
+                throw new IllegalArgumentException("Context variable '" + key + "' should be a " + type.getName() + ", was " + value.getClass().getName());
+            }
+            final Object previous = slots[slot];
+            slots[slot] = value;
+            if (previous == ABSENT) {
+                size++;
+                return null;
+            }
+            return previous;
+        }
+
+        @Override
+        public Object remove(final Object key) {
+            final Integer slot = slotIndex.get(key);
+            if (slot == null) {
+                if (undeclared == null || !undeclared.containsKey(key)) {
+                    return null;
+                }
+                size--;
+                return undeclared.remove(key);
+            }
+            final Object previous = slots[slot];
+            if (previous == ABSENT) {
+                return null;
+            }
+            slots[slot] = ABSENT;
+            size--;
+            return previous;
+        }
+
+        @Override
+        public void clear() {
+            Arrays.fill(slots, ABSENT);
+            undeclared = null;
+            size = 0;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return a read-only copy of the entries
+         */
+        @Nonnull
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            final Map<String, Object> entries = Maps.newLinkedHashMap();
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] != ABSENT) {
+                    entries.put(variables[i], slots[i]);
+                }
+            }
+            if (undeclared != null) {
+                entries.putAll(undeclared);
+            }
+            return Collections.unmodifiableMap(entries).entrySet();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.indeed.proctor.common;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Identifier hashes computed during one call of {@link Proctor#determineTestGroups(Identifiers, java.util.Map, java.util.Map)}.
+ * Each slot stands for one distinct (hash salt, test type) pair, so tests linked through a shared '&amp;' salt hash
+ * the identifier once per request instead of once per test.
+ */
+final class IdentifierHashes {
+    @Nonnull
+    private final int[] hashes;
+    @Nonnull
+    private final boolean[] computed;
+
+    IdentifierHashes(final int numSlots) {
+        this.hashes = new int[numSlots];
+        this.computed = new boolean[numSlots];
+    }
+
+    boolean contains(final int slot) {
+        return computed[slot];
+    }
+
+    int get(final int slot) {
+        return hashes[slot];
+    }
+
+    void put(final int slot, final int hash) {
+        hashes[slot] = hash;
+        computed[slot] = true;
+    }
+}
@@ -5,7 +5,9 @@ import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
 import com.indeed.proctor.common.model.Audit;
 import com.indeed.proctor.common.model.ConsumableTestDefinition;
 import com.indeed.proctor.common.model.TestBucket;
@@ -14,6 +16,7 @@ import com.indeed.proctor.common.model.TestType;
 import com.indeed.util.varexport.VarExporter;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.el.ExpressionFactory;
 import javax.el.FunctionMapper;
 import java.io.IOException;
@@ -22,9 +25,12 @@ import java.io.Writer;
 import java.text.NumberFormat;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.stream.IntStream;
 
 /**
  * The sole entry point for client applications determining the test buckets for a particular client.  See {@link #determineTestGroups(Identifiers, java.util.Map, java.util.Map)}
@@ -43,26 +49,63 @@ public class Proctor {
      */
     @Nonnull
     public static Proctor construct(@Nonnull final TestMatrixArtifact matrix, ProctorLoadResult loadResult, FunctionMapper functionMapper) {
+        return construct(matrix, loadResult, functionMapper, null);
+    }
+
+    /**
+     * Like {@link #construct(TestMatrixArtifact, ProctorLoadResult, FunctionMapper)}, but reuses the choosers of
+     * <code>previous</code> for tests whose {@link ConsumableTestDefinition} is the very same instance, so a loader
+     * that keeps unchanged definitions across reloads only compiles the tests that changed.
+     *
+     * @param previous a Proctor constructed with the same functionMapper, or null to build every test
+     * @return constructed Proctor object
+     */
+    @Nonnull
+    public static Proctor construct(
+            @Nonnull final TestMatrixArtifact matrix,
+            final ProctorLoadResult loadResult,
+            final FunctionMapper functionMapper,
+            @Nullable final Proctor previous
+    ) {
+        return construct(matrix, loadResult, functionMapper, previous, null);
+    }
+
+    /**
+     * Like {@link #construct(TestMatrixArtifact, ProctorLoadResult, FunctionMapper, Proctor)}, but compiles the rules
+     * against a {@link ContextSchema}, so that they read the variables it declares by slot.
+     *
+     * @param contextSchema the variables of the contexts tests will be determined for, or null if they're not known
+     * @return constructed Proctor object
+     */
+    @Nonnull
+    public static Proctor construct(
+            @Nonnull final TestMatrixArtifact matrix,
+            final ProctorLoadResult loadResult,
+            final FunctionMapper functionMapper,
+            @Nullable final Proctor previous,
+            @Nullable final ContextSchema contextSchema
+    ) {
         final ExpressionFactory expressionFactory = RuleEvaluator.EXPRESSION_FACTORY;
 
         final Map<String, TestChooser<?>> testChoosers = Maps.newLinkedHashMap();
-        final Map<String, String> versions = Maps.newLinkedHashMap();
 
         for (final Entry<String, ConsumableTestDefinition> entry : matrix.getTests().entrySet()) {
             final String testName = entry.getKey();
             final ConsumableTestDefinition testDefinition = entry.getValue();
             final TestType testType = testDefinition.getTestType();
+            final TestChooser<?> previousChooser = previous == null || previous.contextSchema != contextSchema ? null : previous.testChoosers.get(testName);
             final TestChooser<?> testChooser;
-            if (TestType.RANDOM.equals(testType)) {
-                testChooser = new RandomTestChooser(expressionFactory, functionMapper, testName, testDefinition);
+            if (previousChooser != null && previousChooser.getTestDefinition() == testDefinition) {
+                testChooser = previousChooser;
+            } else if (TestType.RANDOM.equals(testType)) {
+                testChooser = new RandomTestChooser(expressionFactory, functionMapper, contextSchema, testName, testDefinition);
             } else {
-                testChooser = new StandardTestChooser(expressionFactory, functionMapper, testName, testDefinition);
+                testChooser = new StandardTestChooser(expressionFactory, functionMapper, contextSchema, testName, testDefinition);
             }
             testChoosers.put(testName, testChooser);
-            versions.put(testName, testDefinition.getVersion());
         }
 
-        return new Proctor(matrix, loadResult, testChoosers);
+        return new Proctor(matrix, loadResult, testChoosers, functionMapper, contextSchema);
     }
 
     @Nonnull
@@ -83,25 +126,110 @@ public class Proctor {
     }
 
     static final long INT_RANGE = (long) Integer.MAX_VALUE - (long) Integer.MIN_VALUE;
+    /**
+     * Number of clients {@link #determineTestGroups(List, List)} assigns per fork-join task
+     */
+    private static final int BATCH_CHUNK_SIZE = 1024;
     private final TestMatrixArtifact matrix;
     private final ProctorLoadResult loadResult;
     @Nonnull
     private final Map<String, TestChooser<?>> testChoosers;
+    /**
+     * The entries of {@link #testChoosers} sorted by test name, so that determining test groups doesn't walk the map
+     * and every {@link ProctorResult} can share {@link #testNames}.
+     */
+    @Nonnull
+    private final String[] testNames;
+    @Nonnull
+    private final TestChooser<?>[] choosers;
+    /**
+     * The {@link IdentifierHashes} slot of each {@link StandardTestChooser} in {@link #choosers}, -1 for other choosers.
+     * Tests share a slot when they hash the same identifier with the same salt.
+     */
+    @Nonnull
+    private final int[] hashSlots;
+    private final int numHashSlots;
+    /**
+     * Checks of the tests' top-level rules, indexed like {@link #choosers}, that skip tests which can't match a context
+     */
+    @Nonnull
+    private final RuleIndex ruleIndex;
+    /**
+     * Terms of the tests' rules, each evaluated at most once per request however many tests use it
+     */
+    @Nonnull
+    private final SharedRules sharedRules;
+    @Nullable
+    private final ContextSchema contextSchema;
 
     private final Map<String, ConsumableTestDefinition> testDefinitions = Maps.newLinkedHashMap();
+    @Nonnull
+    private final Map<String, String> testVersions;
 
     @VisibleForTesting
     Proctor(
             final TestMatrixArtifact matrix,
             final ProctorLoadResult loadResult,
             @Nonnull Map<String, TestChooser<?>> testChoosers
+    ) {
+        this(matrix, loadResult, testChoosers, RuleEvaluator.FUNCTION_MAPPER, null);
+    }
+
+    /**
+     * @param functionMapper the function mapper the choosers were built with
+     * @param contextSchema the context schema the choosers were built with
+     */
+    private Proctor(
+            final TestMatrixArtifact matrix,
+            final ProctorLoadResult loadResult,
+            @Nonnull Map<String, TestChooser<?>> testChoosers,
+            @Nullable final FunctionMapper functionMapper,
+            @Nullable final ContextSchema contextSchema
     ) {
         this.matrix = matrix;
+        this.contextSchema = contextSchema;
         this.loadResult = loadResult;
         this.testChoosers = testChoosers;
+        this.testNames = new String[testChoosers.size()];
+        this.choosers = new TestChooser<?>[testChoosers.size()];
+        this.hashSlots = new int[testChoosers.size()];
         for (final Entry<String, TestChooser<?>> entry : testChoosers.entrySet()) {
             this.testDefinitions.put(entry.getKey(), entry.getValue().getTestDefinition());
         }
+        this.testVersions = Collections.unmodifiableMap(ProctorResult.buildTestVersions(testDefinitions));
+
+        final Map<TestType, Map<String, Integer>> slotsBySalt = Maps.newHashMap();
+        int numHashSlots = 0;
+        int i = 0;
+        for (final String testName : Ordering.natural().sortedCopy(testChoosers.keySet())) {
+            final TestChooser<?> testChooser = testChoosers.get(testName);
+            testNames[i] = testName;
+            choosers[i] = testChooser;
+            hashSlots[i] = -1;
+            if (testChooser instanceof StandardTestChooser) {
+                final TestType testType = testChooser.getTestDefinition().getTestType();
+                Map<String, Integer> slots = slotsBySalt.get(testType);
+                if (slots == null) {
+                    slots = Maps.newHashMap();
+                    slotsBySalt.put(testType, slots);
+                }
+                final String hashSalt = ((StandardTestChooser) testChooser).getHashSalt();
+                Integer slot = slots.get(hashSalt);
+                if (slot == null) {
+                    slot = numHashSlots++;
+                    slots.put(hashSalt, slot);
+                }
+                hashSlots[i] = slot;
+            }
+            i++;
+        }
+        this.numHashSlots = numHashSlots;
+        final List<ConsumableTestDefinition> sortedDefinitions = Lists.newArrayListWithCapacity(choosers.length);
+        for (final TestChooser<?> testChooser : choosers) {
+            sortedDefinitions.add(testChooser.getTestDefinition());
+        }
+        this.ruleIndex = RuleIndex.build(sortedDefinitions);
+        this.sharedRules = SharedRules.build(sortedDefinitions, functionMapper, contextSchema);
 
         VarExporter.forNamespace(Proctor.class.getSimpleName()).includeInGlobal().export(this, "");
         VarExporter.forNamespace(DetailedExport.class.getSimpleName()).export(new DetailedExport(), "");  //  intentionally not in global
@@ -172,17 +300,18 @@ public class Proctor {
                                              @Nonnull final Map<String, Object> inputContext,
                                              @Nonnull final Map<String, Integer> forceGroups,
                                              @Nonnull final Collection<String> testNameFilter) {
-        final Map<String, TestBucket> testGroups = Maps.newLinkedHashMap();
-
-        Map<String, TestChooser<?>> filteredChoosers = testChoosers;
-        if (!testNameFilter.isEmpty()) {
-            filteredChoosers = Maps.filterKeys(filteredChoosers, Predicates.in(testNameFilter));
-        }
-
-        for (final Entry<String, TestChooser<?>> entry : filteredChoosers.entrySet()) {
-            final String testName = entry.getKey();
+        final TestBucket[] testGroups = new TestBucket[choosers.length];
+        final IdentifierHashes hashes = new IdentifierHashes(numHashSlots);
+        @Nullable final boolean[] excludedTests = ruleIndex.findExcludedTests(inputContext);
+        @Nonnull final SharedRules.Evaluation sharedRuleEvaluation = sharedRules.newEvaluation(inputContext);
+
+        for (int i = 0; i < choosers.length; i++) {
+            final String testName = testNames[i];
+            if (!testNameFilter.isEmpty() && !testNameFilter.contains(testName)) {
+                continue;
+            }
             final Integer forceGroupBucket = forceGroups.get(testName);
-            final TestChooser<?> testChooser = entry.getValue();
+            final TestChooser<?> testChooser = choosers[i];
             final String identifier;
             if (testChooser instanceof StandardTestChooser) {
                 final TestType testType = testChooser.getTestDefinition().getTestType();
@@ -199,34 +328,205 @@ public class Proctor {
             if (forceGroupBucket != null) {
                 final TestBucket forcedTestBucket = testChooser.getTestBucket(forceGroupBucket);
                 if (forcedTestBucket != null) {
-                    testGroups.put(testName, forcedTestBucket);
+                    testGroups[i] = forcedTestBucket;
                     continue;
                 }
             }
+            final boolean excluded = excludedTests != null && excludedTests[i];
             TestBucket testBucket;
             if (identifier == null) {
-                testBucket = ((RandomTestChooser) testChooser).choose(null, inputContext);
+                testBucket = excluded ? null : ((RandomTestChooser) testChooser).choose(inputContext, sharedRuleEvaluation);
             } else {
                 testBucket = testChooser.getTestDefinition().getWhiteList().get(identifier);
-                if (testBucket == null) {
-                    testBucket = ((StandardTestChooser) testChooser).choose(identifier, inputContext);
+                if (testBucket == null && !excluded) {
+                    testBucket = ((StandardTestChooser) testChooser).choose(identifier, inputContext, hashes, hashSlots[i], sharedRuleEvaluation);
                 }
             }
-            if (testBucket != null) {
-                testGroups.put(testName, testBucket);
-                testChooser.getTestDefinition();
-            }
+            testGroups[i] = testBucket;
         }
 
         // TODO Can we make getAudit nonnull?
         final Audit audit = Preconditions.checkNotNull(matrix.getAudit(), "Missing audit");
-        return new ProctorResult(audit.getVersion(), testGroups, testDefinitions);
+        return new ProctorResult(audit.getVersion(), testNames, testGroups, testDefinitions, testVersions);
+    }
+
+    /**
+     * Determine which test buckets apply to many clients that share one context.
+     * See {@link #determineTestGroups(List, List)}.
+     */
+    @Nonnull
+    public BatchProctorResult determineTestGroups(@Nonnull final List<Identifiers> identifiers, @Nonnull final Map<String, Object> inputContext) {
+        return determineTestGroups(identifiers, Collections.nCopies(identifiers.size(), inputContext));
+    }
+
+    /**
+     * Determine which test buckets apply to many clients at once. Row i of the result holds the buckets
+     * {@link #determineTestGroups(Identifiers, java.util.Map, java.util.Map)} returns for identifiers.get(i) and
+     * inputContexts.get(i) without forced groups.
+     * <p>
+     * Rules are evaluated once per distinct context instance, so rows should share the same {@link Map} whenever their
+     * contexts are the same. The rows are then assigned in chunks on the common fork-join pool.
+     *
+     * @param identifiers   the identifiers of each client
+     * @param inputContexts the context of each client, in the same order as identifiers
+     * @return a {@link BatchProctorResult} with one row per client
+     */
+    @Nonnull
+    public BatchProctorResult determineTestGroups(@Nonnull final List<Identifiers> identifiers, @Nonnull final List<? extends Map<String, Object>> inputContexts) {
+        Preconditions.checkArgument(identifiers.size() == inputContexts.size(),
+                "Expected one input context per client, got %s identifiers and %s input contexts", identifiers.size(), inputContexts.size());
+        final int numRows = identifiers.size();
+        final Identifiers[] rows = identifiers.toArray(new Identifiers[numRows]);
+
+        // number the distinct contexts, and note which tests the rows using each context can be part of
+        final Map<Map<String, Object>, Integer> contextIndices = new IdentityHashMap<Map<String, Object>, Integer>();
+        final List<Map<String, Object>> contexts = Lists.newArrayList();
+        final List<boolean[]> applicableTests = Lists.newArrayList();
+        final int[] rowContexts = new int[numRows];
+        Map<String, Object> previousContext = null;
+        int contextIndex = -1;
+        for (int row = 0; row < numRows; row++) {
+            final Map<String, Object> context = inputContexts.get(row);
+            if (context != previousContext || contextIndex < 0) {
+                final Integer existing = contextIndices.get(context);
+                if (existing == null) {
+                    contextIndex = contexts.size();
+                    contextIndices.put(context, contextIndex);
+                    contexts.add(context);
+                    applicableTests.add(new boolean[choosers.length]);
+                } else {
+                    contextIndex = existing;
+                }
+                previousContext = context;
+            }
+            rowContexts[row] = contextIndex;
+            final boolean[] applicable = applicableTests.get(contextIndex);
+            for (int i = 0; i < choosers.length; i++) {
+                if (!applicable[i]) {
+                    applicable[i] = getBatchIdentifier(rows[row], i) != null;
+                }
+            }
+        }
+
+        final int[][] matchingRules = new int[contexts.size()][];
+        IntStream.range(0, contexts.size()).parallel().forEach(context -> {
+            final Map<String, Object> values = contexts.get(context);
+            final boolean[] applicable = applicableTests.get(context);
+            @Nullable final boolean[] excludedTests = ruleIndex.findExcludedTests(values);
+            @Nonnull final SharedRules.Evaluation sharedRuleEvaluation = sharedRules.newEvaluation(values);
+            final int[] rules = new int[choosers.length];
+            for (int i = 0; i < choosers.length; i++) {
+                if (!applicable[i] || (excludedTests != null && excludedTests[i])) {
+                    rules[i] = -1;
+                } else if (choosers[i] instanceof StandardTestChooser) {
+                    rules[i] = ((StandardTestChooser) choosers[i]).findMatchingRule(values, sharedRuleEvaluation);
+                } else {
+                    rules[i] = ((RandomTestChooser) choosers[i]).findMatchingRule(values, sharedRuleEvaluation);
+                }
+            }
+            matchingRules[context] = rules;
+        });
+
+        final TestBucket[][] buckets = new TestBucket[choosers.length][numRows];
+        final int numChunks = (numRows + BATCH_CHUNK_SIZE - 1) / BATCH_CHUNK_SIZE;
+        IntStream.range(0, numChunks).parallel().forEach(chunk -> {
+            final int from = chunk * BATCH_CHUNK_SIZE;
+            final int to = Math.min(numRows, from + BATCH_CHUNK_SIZE);
+            assignBatchChunk(rows, rowContexts, matchingRules, buckets, from, to);
+        });
+
+        final Audit audit = Preconditions.checkNotNull(matrix.getAudit(), "Missing audit");
+        return new BatchProctorResult(audit.getVersion(), testNames, buckets, testDefinitions, testVersions);
+    }
+
+    /**
+     * Fills buckets[test][from, to), one test at a time, hashing each identifier once per hash slot.
+     */
+    private void assignBatchChunk(
+            @Nonnull final Identifiers[] rows,
+            @Nonnull final int[] rowContexts,
+            @Nonnull final int[][] matchingRules,
+            @Nonnull final TestBucket[][] buckets,
+            final int from,
+            final int to
+    ) {
+        final int[][] hashes = new int[numHashSlots][to - from];
+        final boolean[][] hashed = new boolean[numHashSlots][to - from];
+        for (int i = 0; i < choosers.length; i++) {
+            final TestChooser<?> testChooser = choosers[i];
+            final TestBucket[] column = buckets[i];
+            if (testChooser instanceof StandardTestChooser) {
+                final StandardTestChooser standardTestChooser = (StandardTestChooser) testChooser;
+                final Map<String, TestBucket> whiteList = testChooser.getTestDefinition().getWhiteList();
+                final int[] slotHashes = hashes[hashSlots[i]];
+                final boolean[] slotHashed = hashed[hashSlots[i]];
+                for (int row = from; row < to; row++) {
+                    final String identifier = getBatchIdentifier(rows[row], i);
+                    if (identifier == null) {
+                        continue;
+                    }
+                    if (!whiteList.isEmpty()) {
+                        final TestBucket whiteListed = whiteList.get(identifier);
+                        if (whiteListed != null) {
+                            column[row] = whiteListed;
+                            continue;
+                        }
+                    }
+                    final int matchingRule = matchingRules[rowContexts[row]][i];
+                    if (matchingRule < 0) {
+                        continue;
+                    }
+                    final int offset = row - from;
+                    if (!slotHashed[offset]) {
+                        slotHashes[offset] = standardTestChooser.hash(identifier);
+                        slotHashed[offset] = true;
+                    }
+                    column[row] = standardTestChooser.chooseBucket(matchingRule, slotHashes[offset]);
+                }
+            } else {
+                final RandomTestChooser randomTestChooser = (RandomTestChooser) testChooser;
+                for (int row = from; row < to; row++) {
+                    final int matchingRule = matchingRules[rowContexts[row]][i];
+                    if (matchingRule >= 0 && rows[row].isRandomEnabled()) {
+                        //noinspection deprecation
+                        column[row] = randomTestChooser.allocateRandomGroup(matchingRule);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the identifier test i hashes for this client, "" for a random test the client takes part in, or null
+     *         if test i does not apply to the client
+     */
+    @Nullable
+    private String getBatchIdentifier(@Nonnull final Identifiers row, final int i) {
+        if (choosers[i] instanceof StandardTestChooser) {
+            return row.getIdentifier(choosers[i].getTestDefinition().getTestType());
+        }
+        return row.isRandomEnabled() ? "" : null;
     }
 
     public TestMatrixArtifact getArtifact() {
         return matrix;
     }
 
+    /**
+     * @return the schema the rules were compiled against; contexts from its {@link ContextSchema#newValues()} are
+     *         bound without copying, or null if there is none
+     */
+    @Nullable
+    public ContextSchema getContextSchema() {
+        return contextSchema;
+    }
+
+    @VisibleForTesting
+    @Nullable
+    TestChooser<?> getTestChooser(final String name) {
+        return testChoosers.get(name);
+    }
+
     @SuppressWarnings("UnusedDeclaration") // TODO Needed?
     public ConsumableTestDefinition getTestDefinition(final String name) {
         return matrix.getTests().get(name);
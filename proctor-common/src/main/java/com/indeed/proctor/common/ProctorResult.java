@@ -4,16 +4,24 @@ import com.indeed.proctor.common.model.Audit;
 import com.indeed.proctor.common.model.ConsumableTestDefinition;
 import com.indeed.proctor.common.model.TestBucket;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.function.BiConsumer;
 
 import com.google.common.collect.Maps;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * Return value from {@link Proctor#determineTestGroups(Identifiers, java.util.Map, java.util.Map)}
+ * <p>
+ * Results built by {@link Proctor} keep one bucket per test in an array indexed like the sorted test names that
+ * Proctor shares between all of its results. The sorted {@link #getBuckets()} map is only built when a caller asks
+ * for it, and from then on that map holds the buckets; use {@link #getBucket(String)} and
+ * {@link #forEachBucket(BiConsumer)} to avoid building it.
  * @author ketan
  *
  */
@@ -21,10 +29,20 @@ public class ProctorResult {
     public static final ProctorResult EMPTY = new ProctorResult(Audit.EMPTY_VERSION, Collections.<String, TestBucket>emptyMap(), Collections.<String, ConsumableTestDefinition>emptyMap());
 
     private String matrixVersion = Audit.EMPTY_VERSION;
+    /**
+     * Never changed in place, so a reader on another thread never sees half of it; unused once {@link #bucketMap} is set
+     */
     @Nonnull
-    private Map<String, TestBucket> buckets = Collections.<String, TestBucket>emptyMap();
+    private volatile Buckets buckets = Buckets.EMPTY;
+    /**
+     * The map handed out by {@link #getBuckets()} or given to {@link #setBuckets(Map)}; once set it holds the buckets
+     */
+    @Nullable
+    private volatile Map<String, TestBucket> bucketMap;
     @Nonnull
     private Map<String, ConsumableTestDefinition> testDefinitions = Collections.<String, ConsumableTestDefinition>emptyMap();
+    @Nullable
+    private Map<String, String> testVersions;
 
     @Deprecated
     public ProctorResult(
@@ -41,11 +59,29 @@ public class ProctorResult {
             @Nonnull final Map<String, ConsumableTestDefinition> testDefinitions
     ) {
         this.matrixVersion = matrixVersion;
-        this.buckets = Maps.newTreeMap();
-        this.buckets.putAll(buckets);
+        this.bucketMap = Maps.newTreeMap();
+        this.bucketMap.putAll(buckets);
         this.testDefinitions = testDefinitions;
     }
 
+    /**
+     * @param testNames       sorted test names, not copied
+     * @param testBuckets     the bucket of each test in testNames, null where the test does not apply; not copied
+     * @param testVersions    the versions of testDefinitions, not copied and not changed
+     */
+    ProctorResult(
+            final String matrixVersion,
+            @Nonnull final String[] testNames,
+            @Nonnull final TestBucket[] testBuckets,
+            @Nonnull final Map<String, ConsumableTestDefinition> testDefinitions,
+            @Nonnull final Map<String, String> testVersions
+    ) {
+        this.matrixVersion = matrixVersion;
+        this.buckets = new Buckets(testNames, testBuckets);
+        this.testDefinitions = testDefinitions;
+        this.testVersions = testVersions;
+    }
+
     public ProctorResult() {}
 
     @SuppressWarnings("UnusedDeclaration")
@@ -57,13 +93,55 @@ public class ProctorResult {
         this.matrixVersion = matrixVersion;
     }
 
+    /**
+     * @return the buckets by test name; changes to the map change this result
+     */
     @Nonnull
     public Map<String, TestBucket> getBuckets() {
-        return buckets;
+        Map<String, TestBucket> bucketMap = this.bucketMap;
+        if (bucketMap == null) {
+            synchronized (this) {
+                bucketMap = this.bucketMap;
+                if (bucketMap == null) {
+                    bucketMap = Maps.newTreeMap();
+                    buckets.forEach(bucketMap::put);
+                    this.bucketMap = bucketMap;
+                }
+            }
+        }
+        return bucketMap;
     }
 
     public void setBuckets(Map<String, TestBucket> buckets) {
-        this.buckets = buckets;
+        synchronized (this) {
+            this.bucketMap = buckets;
+            this.buckets = Buckets.EMPTY;
+        }
+    }
+
+    /**
+     * @return the bucket of the test, or null if the test does not apply
+     */
+    @Nullable
+    public TestBucket getBucket(@Nonnull final String testName) {
+        final Map<String, TestBucket> bucketMap = this.bucketMap;
+        return bucketMap != null ? bucketMap.get(testName) : buckets.get(testName);
+    }
+
+    /**
+     * Calls consumer with each test name and bucket, in the order of {@link #getBuckets()}, without building that map.
+     */
+    public void forEachBucket(@Nonnull final BiConsumer<String, TestBucket> consumer) {
+        final Map<String, TestBucket> bucketMap = this.bucketMap;
+        if (bucketMap == null) {
+            buckets.forEach(consumer);
+            return;
+        }
+        for (final Entry<String, TestBucket> entry : bucketMap.entrySet()) {
+            if (entry.getValue() != null) {
+                consumer.accept(entry.getKey(), entry.getValue());
+            }
+        }
     }
 
     @Nonnull
@@ -73,15 +151,59 @@ public class ProctorResult {
 
     public void setTestDefinitions(Map<String, ConsumableTestDefinition> testDefinitions) {
         this.testDefinitions = testDefinitions;
+        this.testVersions = null;
     }
 
     @Nonnull
     public Map<String, String> getTestVersions() {
-        // TODO ImmutableMap?
-        final Map<String, String> testVersions = Maps.newHashMap();
+        // copied from the versions Proctor computed once, rather than read from every definition again
+        final Map<String, String> testVersions = this.testVersions;
+        return testVersions != null ? Maps.newHashMap(testVersions) : buildTestVersions(testDefinitions);
+    }
+
+    @Nonnull
+    static Map<String, String> buildTestVersions(@Nonnull final Map<String, ConsumableTestDefinition> testDefinitions) {
+        final Map<String, String> testVersions = Maps.newHashMapWithExpectedSize(testDefinitions.size());
         for (final Entry<String, ConsumableTestDefinition> entry : testDefinitions.entrySet()) {
             testVersions.put(entry.getKey(), entry.getValue().getVersion());
         }
         return testVersions;
     }
+
+    /**
+     * One bucket per test, in arrays indexed like the sorted test names
+     */
+    private static final class Buckets {
+        static final Buckets EMPTY = new Buckets(new String[0], new TestBucket[0]);
+
+        /**
+         * Sorted test names; results of one {@link Proctor} share them
+         */
+        @Nonnull
+        private final String[] testNames;
+        /**
+         * testBuckets[i] is the bucket of testNames[i], or null if the test does not apply
+         */
+        @Nonnull
+        private final TestBucket[] testBuckets;
+
+        Buckets(@Nonnull final String[] testNames, @Nonnull final TestBucket[] testBuckets) {
+            this.testNames = testNames;
+            this.testBuckets = testBuckets;
+        }
+
+        @Nullable
+        TestBucket get(@Nonnull final String testName) {
+            final int index = Arrays.binarySearch(testNames, testName);
+            return index < 0 ? null : testBuckets[index];
+        }
+
+        void forEach(@Nonnull final BiConsumer<String, TestBucket> consumer) {
+            for (int i = 0; i < testBuckets.length; i++) {
+                if (testBuckets[i] != null) {
+                    consumer.accept(testNames[i], testBuckets[i]);
+                }
+            }
+        }
+    }
 }
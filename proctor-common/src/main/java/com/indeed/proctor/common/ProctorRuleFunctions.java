@@ -1,9 +1,14 @@
 package com.indeed.proctor.common;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.indeed.util.core.ReleaseVersion;
 import org.apache.log4j.Logger;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.Collection;
+import java.util.regex.Pattern;
 
 /**
  * Library of functions to make available to EL rules
@@ -14,12 +19,25 @@ import java.util.Collection;
 public class ProctorRuleFunctions {
     private static final Logger LOGGER = Logger.getLogger(ProctorRuleFunctions.class);
 
+    /**
+     * Patterns and versions written as literals in compiled rules, see {@link RuleEvaluator#compileRule(String)}.
+     * Weakly held: the evaluators that compiled the rules keep them, so they go away together with the test matrix.
+     */
+    private static final Cache<String, Pattern> CONSTANT_PATTERNS = CacheBuilder.newBuilder().weakValues().build();
+    private static final Cache<String, ReleaseVersion> CONSTANT_VERSIONS = CacheBuilder.newBuilder().weakValues().build();
+    /**
+     * Anything else, e.g. a regex or version from a context value, is cached up to a limit.
+     */
+    private static final int DYNAMIC_CACHE_SIZE = 1000;
+    private static final Cache<String, Pattern> DYNAMIC_PATTERNS = CacheBuilder.newBuilder().maximumSize(DYNAMIC_CACHE_SIZE).build();
+    private static final Cache<String, ReleaseVersion> DYNAMIC_VERSIONS = CacheBuilder.newBuilder().maximumSize(DYNAMIC_CACHE_SIZE).build();
+
     public static boolean contains(final Collection c, final Object element) {
         return c.contains(element);
     }
 
     public static boolean matches(final String value, final String regex) {
-        return value.matches(regex);
+        return getPattern(regex).matcher(value).matches();
     }
 
     public static long now() {
@@ -27,7 +45,7 @@ public class ProctorRuleFunctions {
     }
 
     public static ReleaseVersion version(final String versionString) {
-        return ReleaseVersion.fromString(versionString);
+        return getVersion(versionString);
     }
 
     public static <T extends Comparable<T>> boolean inRange(final T value, final T closedLowerBound, final T openUpperBound) {
@@ -35,8 +53,8 @@ public class ProctorRuleFunctions {
     }
 
     public static boolean versionInRange(final ReleaseVersion version, final String startInclusive, final String endExclusive) {
-        final ReleaseVersion start = ReleaseVersion.fromString(startInclusive);
-        final ReleaseVersion end = ReleaseVersion.fromString(endExclusive);
+        final ReleaseVersion start = getVersion(startInclusive);
+        final ReleaseVersion end = getVersion(endExclusive);
         if (end.getMatchPrecision() != ReleaseVersion.MatchPrecision.BUILD) {
             throw new IllegalStateException("Cannot use wildcard as open upper bound of range: " + endExclusive);
         }
@@ -50,20 +68,142 @@ public class ProctorRuleFunctions {
     }
 
     public static String hdidToDigit(String hdid) {
-        String result = "";
-        if (hdid == null || hdid.isEmpty()) {
-            return result;
+        final long value = hdidValue(hdid);
+        if (value < 0) {
+            if (hdid != null && !hdid.isEmpty()) {
+                LOGGER.error("hdidToDigit failed with hdid " + hdid + ": not a hex number");
+            }
+            return "";
+        }
+        return value < 10 ? "0" + value : Long.toString(value);
+    }
+
+    /**
+     * The last decimal digit of {@link #hdidToDigit(String)}, without building the string.
+     * {@code proctor:hdidLastDigit(deviceId) == 1} is true exactly when {@code proctor:endsWith(proctor:hdidToDigit(deviceId), '1')} is.
+     *
+     * @return 0-9, or -1 when hdidToDigit would return ""
+     */
+    public static int hdidLastDigit(final String hdid) {
+        final long value = hdidValue(hdid);
+        return value < 0 ? -1 : (int) (value % 10);
+    }
+
+    /**
+     * Number of hex digits from the end of the hdid used by {@link #hdidToDigit(String)}
+     */
+    private static final int HDID_DIGIT_LENGTH = 8;
+
+    /**
+     * The value hdidToDigit formats: the last 8 characters of the hdid once dashes are removed, read as hex.
+     * Reads them straight from the string instead of copying it.
+     *
+     * @return the value, or -1 if the hdid is empty or those characters are not a hex number
+     */
+    private static long hdidValue(final String hdid) {
+        if (hdid == null) {
+            return -1;
+        }
+        long value = 0;
+        int digits = 0;
+        int shift = 0;
+        for (int i = hdid.length() - 1; i >= 0 && digits < HDID_DIGIT_LENGTH; i--) {
+            final char c = hdid.charAt(i);
+            if (c == '-') {
+                continue;
+            }
+            digits++;
+            final int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                // Long.valueOf accepts a leading plus sign, as long as a digit follows
+                return c == '+' && shift > 0 && (digits == HDID_DIGIT_LENGTH || onlyDashesBefore(hdid, i)) ? value : -1;
+            }
+            value |= ((long) digit) << shift;
+            shift += 4;
+        }
+        return shift == 0 ? -1 : value;
+    }
+
+    private static boolean onlyDashesBefore(final String hdid, final int end) {
+        for (int i = 0; i < end; i++) {
+            if (hdid.charAt(i) != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a regex that appears as a literal in a rule once, ahead of evaluation.
+     * Invalid ones are left alone so that evaluating the rule fails as it always did.
+     *
+     * @return the cached pattern, which stays cached only as long as the caller holds on to it; null if invalid
+     */
+    @Nullable
+    static Pattern cacheConstantPattern(@Nonnull final String regex) {
+        final Pattern pattern = CONSTANT_PATTERNS.getIfPresent(regex);
+        if (pattern != null) {
+            return pattern;
         }
-        int digitLength = 8;
-        String formatHdid = hdid.replace("-", "").toLowerCase();
-        if (formatHdid.length() > digitLength) {
-            formatHdid = formatHdid.substring(formatHdid.length() - digitLength);
+        try {
+            final Pattern compiled = Pattern.compile(regex);
+            final Pattern previous = CONSTANT_PATTERNS.asMap().putIfAbsent(regex, compiled);
+            return previous == null ? compiled : previous;
+        } catch (final RuntimeException e) {
+            LOGGER.debug("Not caching invalid regex '" + regex + "'", e);
+            return null;
+        }
+    }
+
+    /**
+     * Parses a version that appears as a literal in a rule once, ahead of evaluation.
+     *
+     * @return the cached version, which stays cached only as long as the caller holds on to it; null if invalid
+     */
+    @Nullable
+    static ReleaseVersion cacheConstantVersion(@Nonnull final String versionString) {
+        final ReleaseVersion version = CONSTANT_VERSIONS.getIfPresent(versionString);
+        if (version != null) {
+            return version;
         }
         try {
-            result = String.format("%02d", Long.valueOf(formatHdid, 16));
-        } catch (NumberFormatException e) {
-            LOGGER.error(String.format("hdidToDigit failed with hdid %s: ", hdid) + e.toString());
+            final ReleaseVersion parsed = ReleaseVersion.fromString(versionString);
+            final ReleaseVersion previous = CONSTANT_VERSIONS.asMap().putIfAbsent(versionString, parsed);
+            return previous == null ? parsed : previous;
+        } catch (final RuntimeException e) {
+            LOGGER.debug("Not caching invalid version '" + versionString + "'", e);
+            return null;
+        }
+    }
+
+    static boolean isConstantCached(@Nonnull final String literal) {
+        return CONSTANT_PATTERNS.getIfPresent(literal) != null || CONSTANT_VERSIONS.getIfPresent(literal) != null;
+    }
+
+    @Nonnull
+    private static Pattern getPattern(final String regex) {
+        Pattern pattern = CONSTANT_PATTERNS.getIfPresent(regex);
+        if (pattern == null) {
+            pattern = DYNAMIC_PATTERNS.getIfPresent(regex);
+            if (pattern == null) {
+                // compile outside the cache so that a bad regex throws the usual PatternSyntaxException
+                pattern = Pattern.compile(regex);
+                DYNAMIC_PATTERNS.put(regex, pattern);
+            }
+        }
+        return pattern;
+    }
+
+    @Nonnull
+    private static ReleaseVersion getVersion(final String versionString) {
+        ReleaseVersion version = CONSTANT_VERSIONS.getIfPresent(versionString);
+        if (version == null) {
+            version = DYNAMIC_VERSIONS.getIfPresent(versionString);
+            if (version == null) {
+                version = ReleaseVersion.fromString(versionString);
+                DYNAMIC_VERSIONS.put(versionString, version);
+            }
         }
-        return result;
+        return version;
     }
 }
@@ -38,7 +38,15 @@ class RandomTestChooser implements TestChooser<Void> {
     }
 
     public RandomTestChooser(final long seed, final ExpressionFactory expressionFactory, final FunctionMapper functionMapper, final String testName, @Nonnull final ConsumableTestDefinition testDefinition) {
-        testRangeSelector = new TestRangeSelector(expressionFactory, functionMapper, testName, testDefinition);
+        this(seed, expressionFactory, functionMapper, null, testName, testDefinition);
+    }
+
+    RandomTestChooser(final ExpressionFactory expressionFactory, final FunctionMapper functionMapper, @Nullable final ContextSchema contextSchema, final String testName, @Nonnull final ConsumableTestDefinition testDefinition) {
+        this(System.nanoTime(), expressionFactory, functionMapper, contextSchema, testName, testDefinition);
+    }
+
+    private RandomTestChooser(final long seed, final ExpressionFactory expressionFactory, final FunctionMapper functionMapper, @Nullable final ContextSchema contextSchema, final String testName, @Nonnull final ConsumableTestDefinition testDefinition) {
+        testRangeSelector = new TestRangeSelector(expressionFactory, functionMapper, contextSchema, testName, testDefinition);
         allocations = testDefinition.getAllocations();
         random = new Random(seed);
     }
@@ -91,7 +99,15 @@ class RandomTestChooser implements TestChooser<Void> {
     @Nullable
     @Override
     public TestBucket choose(@Nullable Void identifier, @Nonnull Map<String, Object> values) {
-        final int matchingRuleIndex = testRangeSelector.findMatchingRule(values);
+        return choose(values, null);
+    }
+
+    /**
+     * @param sharedRules the request's evaluation of the rules shared between tests, may be null
+     */
+    @Nullable
+    TestBucket choose(@Nonnull final Map<String, Object> values, @Nullable final SharedRules.Evaluation sharedRules) {
+        final int matchingRuleIndex = testRangeSelector.findMatchingRule(values, sharedRules);
         if (matchingRuleIndex < 0) {
             return null;
         }
@@ -100,6 +116,13 @@ class RandomTestChooser implements TestChooser<Void> {
         return allocateRandomGroup(matchingRuleIndex);
     }
 
+    /**
+     * @return the index of the first allocation whose rule matches, or -1 if the test (or no allocation) applies
+     */
+    int findMatchingRule(@Nonnull final Map<String, Object> values, @Nullable final SharedRules.Evaluation sharedRules) {
+        return testRangeSelector.findMatchingRule(values, sharedRules);
+    }
+
     /**
      * @deprecated Temporary implementation; this should be more like {@link StandardTestChooser}, with the cutoffs etc. set in the constructor.
      */
@@ -2,9 +2,11 @@ package com.indeed.proctor.common;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
 import com.indeed.proctor.common.admin.model.Test;
 import com.indeed.proctor.common.admin.model.TestGroup;
 import com.indeed.proctor.common.admin.model.TestMatrix;
@@ -15,18 +17,20 @@ import org.apache.log4j.Logger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
-import java.util.stream.IntStream;
 
 
 /**
@@ -49,6 +53,28 @@ public class RemoteProctorLoader extends AbstractProctorLoader {
     private final ObjectMapper objectMapper = Serializers.lenient();
     @Nullable
     private TestMatrixArtifact cachedArtifact = null;
+    /**
+     * 上次生成的每个实验的定义，内容没变的实验直接复用，不用再分配流量，Proctor 也会复用它的 TestChooser
+     */
+    @Nonnull
+    private Map<String, CachedTestDefinition> cachedTestDefinitions = Collections.emptyMap();
+    /**
+     * 上次下载内容的md5，内容没变时不用再解析
+     */
+    @Nullable
+    private byte[] cachedContentDigest = null;
+    /**
+     * 上次下载时服务器返回的 ETag 和 Last-Modified，用来发条件请求
+     */
+    @Nullable
+    private volatile String eTag = null;
+    @Nullable
+    private volatile String lastModified = null;
+    /**
+     * 由 {@link #doLoad(byte[], String, String)} 异步下载好的内容
+     */
+    @Nullable
+    private byte[] prefetchedContent = null;
 
     public static RemoteProctorLoader createInstance() throws MalformedURLException {
         final ProctorSpecification specification = new ProctorSpecification();
@@ -61,15 +87,102 @@ public class RemoteProctorLoader extends AbstractProctorLoader {
         super(RemoteProctorLoader.class, specification, RuleEvaluator.FUNCTION_MAPPER);
     }
 
+    /**
+     * 规则按 {@link InputContexts#CONTEXT_SCHEMA} 编译，请求的上下文变量按下标读取
+     */
+    @Nullable
+    @Override
+    protected ContextSchema createContextSchema(final ProctorSpecification specification) {
+        return InputContexts.CONTEXT_SCHEMA;
+    }
+
+    /**
+     * 用已经下载好的内容加载，比如在 Vert.x 的 HttpClient 上异步发的条件请求。其余和 {@link #doLoad()} 一样
+     *
+     * @param eTag 下载时服务器返回的 ETag，加载成功后用于下次的条件请求
+     * @param lastModified 下载时服务器返回的 Last-Modified
+     */
+    @Nullable
+    public Proctor doLoad(@Nonnull final byte[] content, @Nullable final String eTag, @Nullable final String lastModified)
+            throws IOException, MissingTestMatrixException {
+        prefetchedContent = content;
+        final Proctor proctor;
+        try {
+            proctor = doLoad();
+        } finally {
+            prefetchedContent = null;
+        }
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        return proctor;
+    }
+
+    @Nullable
+    public String getETag() {
+        return eTag;
+    }
+
+    @Nullable
+    public String getLastModified() {
+        return lastModified;
+    }
+
     @Nullable
     @Override
     protected TestMatrixArtifact loadTestMatrix() throws IOException, MissingTestMatrixException {
         /*
          * 这里根据数据源构造出TestMatrixArtifact，给AbstractProctorLoader做进一步验证。
          */
-        try (final Reader reader = new BufferedReader(new InputStreamReader(inputURL.openStream(), StandardCharsets.UTF_8))) {
-            return loadJsonTestMatrix(reader);
+        if (prefetchedContent != null) {
+            return loadTestMatrix(prefetchedContent);
         }
+        final URLConnection connection = inputURL.openConnection();
+        if (!(connection instanceof HttpURLConnection)) {
+            try (final InputStream inputStream = connection.getInputStream()) {
+                return loadTestMatrix(ByteStreams.toByteArray(inputStream));
+            }
+        }
+        final HttpURLConnection httpConnection = (HttpURLConnection) connection;
+        if (cachedArtifact != null) {
+            if (eTag != null) {
+                httpConnection.setRequestProperty("If-None-Match", eTag);
+            }
+            if (lastModified != null) {
+                httpConnection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+        }
+        try {
+            if (httpConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED && cachedArtifact != null) {
+                return cachedArtifact;
+            }
+            final byte[] content;
+            try (final InputStream inputStream = httpConnection.getInputStream()) {
+                content = ByteStreams.toByteArray(inputStream);
+            }
+            final TestMatrixArtifact artifact = loadTestMatrix(content);
+            eTag = httpConnection.getHeaderField("ETag");
+            lastModified = httpConnection.getHeaderField("Last-Modified");
+            return artifact;
+        } finally {
+            httpConnection.disconnect();
+        }
+    }
+
+    /**
+     * 先比较原始内容的md5，没变就直接返回上次的结果，不再解析
+     */
+    @Nullable
+    private TestMatrixArtifact loadTestMatrix(@Nonnull final byte[] content) throws IOException {
+        final byte[] contentDigest = ProctorUtils.createMessageDigest().digest(content);
+        if (cachedArtifact != null && Arrays.equals(contentDigest, cachedContentDigest)) {
+            return cachedArtifact;
+        }
+        final TestMatrixArtifact artifact;
+        try (final Reader reader = new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8)) {
+            artifact = loadJsonTestMatrix(reader);
+        }
+        cachedContentDigest = contentDigest;
+        return artifact;
     }
 
     @Nullable
@@ -87,77 +200,117 @@ public class RemoteProctorLoader extends AbstractProctorLoader {
 
     private void allocateTraffic(@Nonnull final ConsumableTestDefinition testDefinition,
                                  @Nonnull final Test test) {
-        List<Range> ranges = testDefinition.getAllocations().get(0).getRanges();
+        Allocation allocation = testDefinition.getAllocations().get(0);
         List<TestBucket> buckets = testDefinition.getBuckets();
         int totalActiveBucket = buckets.size() - 1;
 
-        // 核心算法：利用多轮错位分配的方法，来安排流量分布
-        //         第一轮先按offset排好ABC
-        //         第二轮再按offset+1排余下的ABC
-        //         以此类推...
-        // 限制条件：totalActiveBucket在实验开始之后不能改变
-        // 变通方法：可以多创建一些分布为0的分组
-        Map<TestBucket, Long> remainingRatio = Maps.newHashMap();
-        AtomicInteger round = new AtomicInteger(0);
-        for (; round.get() < totalActiveBucket; round.incrementAndGet()) {
-            buckets.stream().skip(1)  // inactive bucket is always the first one.
-                    .forEachOrdered(bucket -> {
-                        long bucketRatio;
-                        if (!remainingRatio.containsKey(bucket)) {
-                            TestGroup testGroup = findTestGroupByVariable(test, bucket.getName());
-                            long absoluteRatio = test.getRatio() * testGroup.getRatio();
-                            long absoluteTotal = 10000 * 10000;
-                            bucketRatio = MAX_ALLOCATION * absoluteRatio / absoluteTotal;
-                            remainingRatio.put(bucket, bucketRatio);
-                        } else {
-                            bucketRatio = remainingRatio.get(bucket);
-                        }
-                        LOGGER.info("bucket `" + test.getTestId() + "/" + bucket.getName() + "/" + bucket.getValue() +
-                                "` has a ratio of " + bucketRatio + "/" + MAX_ALLOCATION + " at round " + round.get());
-                        int bucketIndex = (bucket.getValue() + round.get()) % totalActiveBucket;
-                        AtomicInteger count = new AtomicInteger(0);
-                        IntStream.range(0, ranges.size())
-                                .filter(i -> (i % totalActiveBucket) == bucketIndex)
-                                .filter(i -> ranges.get(i).getBucketValue() == -1)
-                                .limit(bucketRatio)
-                                .forEach(i -> {
-                                    ranges.get(i).setBucketValue(bucket.getValue());
-                                    count.incrementAndGet();
-                                });
-                        remainingRatio.put(bucket, bucketRatio - count.get());
-                    });
+        long[] quotas = new long[totalActiveBucket];
+        buckets.stream().skip(1)  // inactive bucket is always the first one.
+                .forEachOrdered(bucket -> {
+                    TestGroup testGroup = findTestGroupByVariable(test, bucket.getName());
+                    long absoluteRatio = test.getRatio() * testGroup.getRatio();
+                    long absoluteTotal = 10000 * 10000;
+                    quotas[bucket.getValue()] = MAX_ALLOCATION * absoluteRatio / absoluteTotal;
+                });
+
+        int[] bucketValues = allocate(quotas, MAX_ALLOCATION);
+        long[] counts = new long[totalActiveBucket];
+        for (int bucketValue : bucketValues) {
+            if (bucketValue >= 0) {
+                counts[bucketValue]++;
+            }
         }
+        // 一万个Range只存成游程，不再逐个创建对象
+        allocation.setRanges(RangeList.of(bucketValues, 1.0 / MAX_ALLOCATION));
 
         // 验证
         buckets.stream().skip(1)
                 .forEachOrdered(bucket -> {
-                    long total = ranges.size();
-                    long count = ranges.stream().filter(range -> range.getBucketValue() == bucket.getValue()).count();
                     LOGGER.info("bucket `" + test.getTestId() + "/" + bucket.getName() + "/" + bucket.getValue() +
-                            "` has a ratio of " + count + "/" + total + " after allocation");
+                            "` has a ratio of " + counts[bucket.getValue()] + "/" + MAX_ALLOCATION +
+                            " after allocation, expected " + quotas[bucket.getValue()] + "/" + MAX_ALLOCATION);
                 });
     }
 
+    /**
+     * 核心算法：利用多轮错位分配的方法，来安排流量分布
+     *         第一轮先按offset排好ABC
+     *         第二轮再按offset+1排余下的ABC
+     *         以此类推...
+     * 限制条件：totalActiveBucket在实验开始之后不能改变
+     * 变通方法：可以多创建一些分布为0的分组
+     *
+     * 第 i 个位置属于第 i % totalActiveBucket 列，第 round 轮里分组 value 只往第 (value + round) % totalActiveBucket 列
+     * 从前往后填空位。每列总是从头依次填满的，所以只需记下每列填到了第几个，每次分配都是 O(1)，
+     * 最后按记下的结果一遍写出布局，和逐个位置扫描的结果完全一样。
+     *
+     * @param quotas 每个分组（下标就是分组的 value）应得的位置数
+     * @param positions 总位置数
+     * @return 每个位置分到的分组 value，没分到的是 -1
+     */
+    @VisibleForTesting
+    @Nonnull
+    static int[] allocate(@Nonnull final long[] quotas, final int positions) {
+        final int totalActiveBucket = quotas.length;
+        final int[] bucketValues = new int[positions];
+        Arrays.fill(bucketValues, -1);
+        if (totalActiveBucket == 0) {
+            return bucketValues;
+        }
+        final long[] remaining = quotas.clone();
+        // 每列已经填了几个
+        final int[] filled = new int[totalActiveBucket];
+        for (int round = 0; round < totalActiveBucket; round++) {
+            for (int value = 0; value < totalActiveBucket; value++) {
+                final int column = (value + round) % totalActiveBucket;
+                final int capacity = (positions - column + totalActiveBucket - 1) / totalActiveBucket;
+                final int count = (int) Math.max(0, Math.min(remaining[value], capacity - filled[column]));
+                for (int i = 0; i < count; i++) {
+                    bucketValues[column + (filled[column] + i) * totalActiveBucket] = value;
+                }
+                filled[column] += count;
+                remaining[value] -= count;
+            }
+        }
+        return bucketValues;
+    }
+
     @Nonnull
     private TestGroup findTestGroupByVariable(Test test, String variable) {
         return test.getTestGroups().stream().filter(testGroup -> testGroup.getVariable().equals(variable))
                 .findFirst().get();
     }
 
+    /**
+     * @return 每个参与计算的实验序列化之后的内容，按 testId 排序；序列化失败的实验内容为 null
+     */
     @Nonnull
-    private String getTestMatrixVersion(@Nonnull final TestMatrix testMatrix) {
-        // Version以所有实验的内容的md5为准
-        MessageDigest testsDigest = ProctorUtils.createMessageDigest();
+    private List<Map.Entry<Test, byte[]>> getTestContents(@Nonnull final TestMatrix testMatrix) {
+        List<Map.Entry<Test, byte[]>> contents = Lists.newArrayList();
         testMatrix.getTests().stream()
                 .filter(eligibleTest())
                 .sorted(Comparator.comparing(Test::getTestId))
                 .forEachOrdered(test -> {
+                    byte[] content = null;
                     try {
-                        testsDigest.update(objectMapper.writeValueAsBytes(test));
+                        content = objectMapper.writeValueAsBytes(test);
                     } catch (JsonProcessingException e) {
                         LOGGER.error("exception got during digest test `" + test.getTestId() + "`", e);
                     }
+                    contents.add(Maps.immutableEntry(test, content));
                 });
+        return contents;
+    }
+
+    @Nonnull
+    private String getTestMatrixVersion(@Nonnull final List<Map.Entry<Test, byte[]>> testContents) {
+        // Version以所有实验的内容的md5为准
+        MessageDigest testsDigest = ProctorUtils.createMessageDigest();
+        testContents.forEach(entry -> {
+            if (entry.getValue() != null) {
+                testsDigest.update(entry.getValue());
+            }
+        });
         return Base64.getEncoder().encodeToString(testsDigest.digest());
     }
 
@@ -176,7 +329,8 @@ public class RemoteProctorLoader extends AbstractProctorLoader {
 
     @Nonnull
     private TestMatrixArtifact createArtifact(@Nonnull final TestMatrix testMatrix) {
-        String testMatrixVersion = getTestMatrixVersion(testMatrix);
+        List<Map.Entry<Test, byte[]>> testContents = getTestContents(testMatrix);
+        String testMatrixVersion = getTestMatrixVersion(testContents);
         if (cachedArtifact != null && cachedArtifact.getAudit().getVersion().equals(testMatrixVersion)) {
             return cachedArtifact;
         }
@@ -190,98 +344,130 @@ public class RemoteProctorLoader extends AbstractProctorLoader {
         artifact.setAudit(audit);
 
         Map<String, ConsumableTestDefinition> testDefinitionMap = Maps.newHashMap();
-        testMatrix.getTests().stream().filter(eligibleTest()).forEach(test -> {
-            ConsumableTestDefinition testDefinition = new ConsumableTestDefinition();
-            testDefinition.setSalt(test.getTestId());
-            testDefinition.setVersion(test.getTestId() + "." + String.valueOf(test.getId()));
-            testDefinition.setDescription("`" + test.getName() + "` " + test.getDescription());
-            switch (test.getType()) {
-                case Test.TYPE_DEVICEID:
-                    testDefinition.setTestType(TestType.DEVICE_ID);
+        Map<String, CachedTestDefinition> testDefinitionCache = Maps.newHashMap();
+        int reused = 0;
+        for (Map.Entry<Test, byte[]> entry : testContents) {
+            Test test = entry.getKey();
+            byte[] content = entry.getValue();
+            CachedTestDefinition cached = cachedTestDefinitions.get(test.getTestId());
+            ConsumableTestDefinition testDefinition;
+            if (content != null && cached != null && Arrays.equals(cached.content, content)) {
+                testDefinition = cached.testDefinition;
+                reused++;
+            } else {
+                testDefinition = createTestDefinition(test);
+            }
+            testDefinitionMap.put(test.getTestId(), testDefinition);
+            if (content != null) {
+                testDefinitionCache.put(test.getTestId(), new CachedTestDefinition(content, testDefinition));
+            }
+        }
+        LOGGER.info("reused " + reused + " of " + testDefinitionMap.size() + " unchanged test definitions");
+        artifact.setTests(testDefinitionMap);
+
+        cachedArtifact = artifact;
+        cachedTestDefinitions = testDefinitionCache;
+        return artifact;
+    }
+
+    @Nonnull
+    private ConsumableTestDefinition createTestDefinition(@Nonnull final Test test) {
+        ConsumableTestDefinition testDefinition = new ConsumableTestDefinition();
+        testDefinition.setSalt(test.getTestId());
+        testDefinition.setVersion(test.getTestId() + "." + String.valueOf(test.getId()));
+        testDefinition.setDescription("`" + test.getName() + "` " + test.getDescription());
+        switch (test.getType()) {
+            case Test.TYPE_DEVICEID:
+                testDefinition.setTestType(TestType.DEVICE_ID);
+                break;
+            case Test.TYPE_UID:
+                testDefinition.setTestType(TestType.USER_ID);
+                break;
+            default:
+                testDefinition.setTestType(TestType.RANDOM);
+        }
+        // 设置测试规则
+        List<String> targetRules = Lists.newArrayList();
+        test.getTargets().forEach(target -> {
+            switch (target) {
+                case Test.TARGET_NEW:
+                    targetRules.add(InputContexts.isBrandNewUser);
                     break;
-                case Test.TYPE_UID:
-                    testDefinition.setTestType(TestType.USER_ID);
+                case Test.TARGET_ALL:
+                    targetRules.add("true");
                     break;
-                default:
-                    testDefinition.setTestType(TestType.RANDOM);
-            }
-            // 设置测试规则
-            List<String> targetRules = Lists.newArrayList();
-            test.getTargets().forEach(target -> {
-                switch (target) {
-                    case Test.TARGET_NEW:
-                        targetRules.add(InputContexts.isBrandNewUser);
-                        break;
-                    case Test.TARGET_ALL:
-                        targetRules.add("true");
-                        break;
-                    case "uidEndsWith1":
-                        // intentionally do not use fn:endsWith
-                        // https://stackoverflow.com/questions/16750540/jstl-bug-in-function-endswith
-                        targetRules.add("proctor:endsWith(userId, '1')");
-                        break;
-                    case "hdid_last_digit_one_two":
-                        targetRules.add("proctor:endsWith(proctor:hdidToDigit(deviceId), '1')");
-                        targetRules.add("proctor:endsWith(proctor:hdidToDigit(deviceId), '2')");
-                        break;
-                    case "not_small_iphone":
-                        targetRules.add("platform=='iOS'&&resolutionWidth>640");
-                        break;
-                    default:
-                        LOGGER.warn("unknown test target `" + target + "`: no rule can be added");
-                }
-            });
-            // 根据测试状态改写规则
-            switch (test.getState()) {
-                case Test.STATE_RUNNING:
+                case "uidEndsWith1":
+                    // intentionally do not use fn:endsWith
+                    // https://stackoverflow.com/questions/16750540/jstl-bug-in-function-endswith
+                    targetRules.add("proctor:endsWith(userId, '1')");
                     break;
-                case Test.STATE_PAUSED:
-                    // 暂停实验必须不能参与计算，这样新用户看不到它
-                    targetRules.clear();
-                    targetRules.add("false");
+                case "hdid_last_digit_one_two":
+                    targetRules.add("proctor:hdidLastDigit(deviceId) == 1");
+                    targetRules.add("proctor:hdidLastDigit(deviceId) == 2");
+                    break;
+                case "not_small_iphone":
+                    targetRules.add("platform=='iOS'&&resolutionWidth>640");
                     break;
                 default:
-                    targetRules.clear();
-                    targetRules.add("false");
-            }
-            testDefinition.setState(Strings.nullToEmpty(test.getState()));
-            testDefinition.setRule("${" + String.join("||", targetRules) + "}");
-
-            List<TestBucket> buckets = Lists.newArrayList();
-            buckets.add(new TestBucket("inactive", -1, ""));
-            Map<String, TestBucket> whiteList = Maps.newHashMap();
-            // 按TestGroup的variable排序
-            AtomicInteger internalBucketId = new AtomicInteger(0);
-            test.getTestGroups().stream().sorted(Comparator.comparing(TestGroup::getVariable))
-                    .forEachOrdered(testGroup -> {
-                        TestBucket bucket = new TestBucket();
-                        bucket.setName(testGroup.getVariable());
-                        bucket.setValue(internalBucketId.getAndIncrement());
-                        bucket.setDescription("`" + testGroup.getName() + "` " + testGroup.getDescription());
-                        buckets.add(bucket);
-                        testGroup.getWhiteList().forEach(identifier -> whiteList.put(identifier, bucket));
-                    });
-            testDefinition.setBuckets(buckets);
-            testDefinition.setWhiteList(whiteList);
-
-            List<Allocation> allocations = Lists.newArrayList();
-            Allocation allocation = new Allocation();
-            List<Range> ranges = Lists.newArrayList();
-            for (int i = 0; i < MAX_ALLOCATION; i++) {
-                ranges.add(new Range(-1, 1.0 / MAX_ALLOCATION));
+                    LOGGER.warn("unknown test target `" + target + "`: no rule can be added");
             }
-            allocation.setRanges(ranges);
-            allocations.add(allocation);
-            testDefinition.setAllocations(allocations);
+        });
+        // 根据测试状态改写规则
+        switch (test.getState()) {
+            case Test.STATE_RUNNING:
+                break;
+            case Test.STATE_PAUSED:
+                // 暂停实验必须不能参与计算，这样新用户看不到它
+                targetRules.clear();
+                targetRules.add("false");
+                break;
+            default:
+                targetRules.clear();
+                targetRules.add("false");
+        }
+        testDefinition.setState(Strings.nullToEmpty(test.getState()));
+        testDefinition.setRule("${" + String.join("||", targetRules) + "}");
 
-            allocateTraffic(testDefinition, test);
+        List<TestBucket> buckets = Lists.newArrayList();
+        buckets.add(new TestBucket("inactive", -1, ""));
+        Map<String, TestBucket> whiteList = Maps.newHashMap();
+        // 按TestGroup的variable排序
+        AtomicInteger internalBucketId = new AtomicInteger(0);
+        test.getTestGroups().stream().sorted(Comparator.comparing(TestGroup::getVariable))
+                .forEachOrdered(testGroup -> {
+                    TestBucket bucket = new TestBucket();
+                    bucket.setName(testGroup.getVariable());
+                    bucket.setValue(internalBucketId.getAndIncrement());
+                    bucket.setDescription("`" + testGroup.getName() + "` " + testGroup.getDescription());
+                    buckets.add(bucket);
+                    testGroup.getWhiteList().forEach(identifier -> whiteList.put(identifier, bucket));
+                });
+        testDefinition.setBuckets(buckets);
+        testDefinition.setWhiteList(whiteList);
 
-            testDefinitionMap.put(test.getTestId(), testDefinition);
-        });
-        artifact.setTests(testDefinitionMap);
+        List<Allocation> allocations = Lists.newArrayList();
+        Allocation allocation = new Allocation();
+        allocations.add(allocation);
+        testDefinition.setAllocations(allocations);
 
-        cachedArtifact = artifact;
-        return artifact;
+        allocateTraffic(testDefinition, test);
+
+        return testDefinition;
+    }
+
+    /**
+     * 生成实验定义的实验内容，以及生成的定义
+     */
+    private static final class CachedTestDefinition {
+        @Nonnull
+        private final byte[] content;
+        @Nonnull
+        private final ConsumableTestDefinition testDefinition;
+
+        private CachedTestDefinition(@Nonnull final byte[] content, @Nonnull final ConsumableTestDefinition testDefinition) {
+            this.content = content;
+            this.testDefinition = testDefinition;
+        }
     }
 
     @Nonnull
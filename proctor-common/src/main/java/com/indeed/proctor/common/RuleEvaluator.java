@@ -5,22 +5,40 @@ import com.google.common.base.Strings;
 import com.indeed.proctor.common.el.LibraryFunctionMapperBuilder;
 import com.indeed.proctor.common.el.MulticontextReadOnlyVariableMapper;
 import org.apache.el.ExpressionFactoryImpl;
+import org.apache.el.lang.ExpressionBuilder;
+import org.apache.el.parser.AstFunction;
+import org.apache.el.parser.AstMethodParameters;
+import org.apache.el.parser.AstString;
+import org.apache.el.parser.Node;
 import org.apache.log4j.Logger;
 import org.apache.taglibs.standard.functions.Functions;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.el.ArrayELResolver;
 import javax.el.BeanELResolver;
 import javax.el.CompositeELResolver;
 import javax.el.ELContext;
+import javax.el.ELException;
 import javax.el.ELResolver;
 import javax.el.ExpressionFactory;
 import javax.el.FunctionMapper;
 import javax.el.ListELResolver;
 import javax.el.MapELResolver;
+import javax.el.PropertyNotFoundException;
+import javax.el.PropertyNotWritableException;
 import javax.el.ValueExpression;
 import javax.el.VariableMapper;
+import java.beans.FeatureDescriptor;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A nice tidy packaging of javax.el stuff.
@@ -36,6 +54,14 @@ public class RuleEvaluator {
 
     static final ExpressionFactory EXPRESSION_FACTORY = new ExpressionFactoryImpl();
 
+    /**
+     * Shared by every {@link Binding}; the resolvers keep no per-request state.
+     */
+    private static final ELResolver BINDING_EL_RESOLVER = constructStandardElResolver();
+
+    @SuppressWarnings("unchecked")
+    private static final VariableMapper NO_VARIABLES = new MulticontextReadOnlyVariableMapper();
+
     @Nonnull
     final ExpressionFactory expressionFactory;
     @Nonnull
@@ -44,11 +70,45 @@ public class RuleEvaluator {
     private final Map<String, ValueExpression> testConstants;
     @Nonnull
     private final FunctionMapper functionMapper;
+    /**
+     * Resolves test constants only; request values are resolved by {@link ContextValuesELResolver} at evaluation time.
+     */
+    @Nonnull
+    private final VariableMapper constantsVariableMapper;
+    /**
+     * Resolves test constants, then the variables of {@link #contextSchema} to their slots; rules are compiled against it.
+     */
+    @Nonnull
+    private final VariableMapper compileVariableMapper;
+    @Nullable
+    private final ContextSchema contextSchema;
+    /**
+     * Rules parsed by {@link #compileRule(String)}, keyed by the rule string.
+     */
+    @Nonnull
+    private final ConcurrentMap<String, ValueExpression> compiledRules = new ConcurrentHashMap<String, ValueExpression>();
+    /**
+     * The patterns and versions {@link ProctorRuleFunctions} parsed for the compiled rules; it only holds them weakly.
+     */
+    @Nonnull
+    private final Set<Object> constantArguments = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
 
     RuleEvaluator(
             @Nonnull final ExpressionFactory expressionFactory,
             @Nonnull final FunctionMapper functionMapper,
             @Nonnull final Map<String, Object> testConstantsMap
+    ) {
+        this(expressionFactory, functionMapper, testConstantsMap, null);
+    }
+
+    /**
+     * @param contextSchema the variables compiled rules read by slot, or null to resolve every variable by name
+     */
+    RuleEvaluator(
+            @Nonnull final ExpressionFactory expressionFactory,
+            @Nonnull final FunctionMapper functionMapper,
+            @Nonnull final Map<String, Object> testConstantsMap,
+            @Nullable final ContextSchema contextSchema
     ) {
         this.expressionFactory = expressionFactory;
 
@@ -57,11 +117,18 @@ public class RuleEvaluator {
         elResolver = constructStandardElResolver();
 
         testConstants = ProctorUtils.convertToValueExpressionMap(expressionFactory, testConstantsMap);
+
+        //noinspection unchecked
+        constantsVariableMapper = new MulticontextReadOnlyVariableMapper(testConstants);
+
+        this.contextSchema = contextSchema;
+        compileVariableMapper = contextSchema == null ? constantsVariableMapper : new SlotVariableMapper(contextSchema);
     }
 
     @Nonnull
     private static CompositeELResolver constructStandardElResolver() {
         final CompositeELResolver elResolver = new CompositeELResolver();
+        elResolver.add(new ContextValuesELResolver());
         elResolver.add(new ArrayELResolver());
         elResolver.add(new ListELResolver());
         elResolver.add(new BeanELResolver());
@@ -101,7 +168,106 @@ public class RuleEvaluator {
         };
     }
 
+    /**
+     * Parses the rule once so that later calls to {@link #evaluateBooleanRule(String, Map)} only bind the context values.
+     * Test constants are bound at parse time, exactly as they are on the uncompiled path, and so are the slots
+     * of the variables the context schema declares.
+     * Rules that are trivially true/false, malformed, or fail to parse are left uncompiled; evaluating them
+     * behaves (and fails) exactly as before.
+     *
+     * @param rule the rule to compile, may be null
+     * @return true if the rule is compiled
+     */
+    boolean compileRule(@Nullable final String rule) {
+        if (!isCompilable(rule)) {
+            return false;
+        }
+        if (compiledRules.containsKey(rule)) {
+            return true;
+        }
+        try {
+            compiledRules.put(rule, expressionFactory.createValueExpression(createELContext(compileVariableMapper), rule, Boolean.class));
+            cacheConstantArguments(ExpressionBuilder.createNode(rule));
+            return true;
+        } catch (@Nonnull final ELException e) {
+            LOGGER.debug("Unable to compile rule '" + rule + "', it will be parsed on every evaluation", e);
+            return compiledRules.containsKey(rule);
+        }
+    }
+
+    /**
+     * Hands the string literals passed to the regex and version functions of {@link ProctorRuleFunctions}
+     * over to it, so that they are parsed once here instead of on every evaluation.
+     */
+    private void cacheConstantArguments(@Nonnull final Node node) {
+        if (node instanceof AstFunction) {
+            final AstFunction function = (AstFunction) node;
+            final Method method = functionMapper.resolveFunction(function.getPrefix(), function.getLocalName());
+            if (method != null && method.getDeclaringClass() == ProctorRuleFunctions.class) {
+                if ("matches".equals(method.getName())) {
+                    final String regex = getStringArgument(function, 1);
+                    if (regex != null) {
+                        keepConstantArgument(ProctorRuleFunctions.cacheConstantPattern(regex));
+                    }
+                } else if ("version".equals(method.getName()) || "versionInRange".equals(method.getName())) {
+                    for (int i = 0; i < getArguments(function).jjtGetNumChildren(); i++) {
+                        final String version = getStringArgument(function, i);
+                        if (version != null) {
+                            keepConstantArgument(ProctorRuleFunctions.cacheConstantVersion(version));
+                        }
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            cacheConstantArguments(node.jjtGetChild(i));
+        }
+    }
+
+    private void keepConstantArgument(@Nullable final Object argument) {
+        if (argument != null) {
+            constantArguments.add(argument);
+        }
+    }
+
+    @Nullable
+    private static String getStringArgument(@Nonnull final AstFunction function, final int index) {
+        final Node arguments = getArguments(function);
+        if (index >= arguments.jjtGetNumChildren()) {
+            return null;
+        }
+        final Node argument = arguments.jjtGetChild(index);
+        return argument instanceof AstString ? ((AstString) argument).getString() : null;
+    }
+
+    /**
+     * Depending on the EL version, the arguments are either the function's children or wrapped in a single node
+     */
+    @Nonnull
+    private static Node getArguments(@Nonnull final AstFunction function) {
+        if (function.jjtGetNumChildren() == 1 && function.jjtGetChild(0) instanceof AstMethodParameters) {
+            return function.jjtGetChild(0);
+        }
+        return function;
+    }
+
+    private static boolean isCompilable(@Nullable final String rule) {
+        if (ProctorUtils.isEmptyWhitespace(rule) || !rule.startsWith("${") || !rule.endsWith("}")) {
+            return false;
+        }
+        final String bareRule = ProctorUtils.removeElExpressionBraces(rule);
+        return !ProctorUtils.isEmptyWhitespace(bareRule) && !"true".equalsIgnoreCase(bareRule) && !"false".equalsIgnoreCase(bareRule);
+    }
+
     public boolean evaluateBooleanRule(final String rule, @Nonnull final Map<String, Object> values) throws IllegalArgumentException {
+        return evaluateBooleanRule(rule, new Binding(values));
+    }
+
+    /**
+     * Like {@link #evaluateBooleanRule(String, Map)}, but binds the context values through a {@link Binding}
+     * that may be shared with other rules and other evaluators evaluated for the same request.
+     */
+    boolean evaluateBooleanRule(final String rule, @Nonnull final Binding binding) throws IllegalArgumentException {
         if (ProctorUtils.isEmptyWhitespace(rule)) {
             return true;
         }
@@ -116,17 +282,296 @@ public class RuleEvaluator {
         if ("false".equalsIgnoreCase(bareRule)) {
             return false;
         }
-        final Map<String, ValueExpression> localContext = ProctorUtils.convertToValueExpressionMap(expressionFactory, values);
-        //noinspection unchecked
-        final VariableMapper variableMapper = new MulticontextReadOnlyVariableMapper(testConstants, localContext);
-        final ELContext elContext = createELContext(variableMapper);
 
-        final ValueExpression ve = expressionFactory.createValueExpression(elContext, rule, Boolean.class);
-        final Object result = ve.getValue(elContext);
+        final Object result;
+        final ValueExpression compiled = compiledRules.get(rule);
+        if (compiled != null) {
+            result = compiled.getValue(binding);
+        } else {
+            final ELContext elContext = createELContext(new BoundVariableMapper(binding));
+
+            final ValueExpression ve = expressionFactory.createValueExpression(elContext, rule, Boolean.class);
+            result = ve.getValue(elContext);
+        }
         if (result instanceof Boolean) {
             return ((Boolean) result);
         }
 
         throw new IllegalArgumentException("Received non-boolean return value: " + result.getClass().getCanonicalName() + " from rule " + rule);
     }
+
+    /**
+     * The context values of one request, bound once and shared by every rule evaluated for it.
+     * Compiled rules read the values by slot, or through {@link ContextValuesELResolver} if the context schema
+     * doesn't declare them; their functions and test constants were bound when they were parsed. Rules parsed on evaluation get a {@link ValueExpression} per variable,
+     * created the first time a rule refers to it and reused by later rules.
+     * Not thread-safe; use one per request.
+     */
+    static final class Binding extends ELContext {
+        @Nonnull
+        private final Map<String, Object> values;
+        @Nullable
+        private Map<String, ValueExpression> variables;
+        @Nullable
+        private ContextSchema slotsSchema;
+        @Nullable
+        private Object[] slots;
+
+        Binding(@Nonnull final Map<String, Object> values) {
+            this.values = values;
+        }
+
+        @Nonnull
+        Map<String, Object> getValues() {
+            return values;
+        }
+
+        /**
+         * @return the values by slot, taken from the context on first use
+         */
+        @Nonnull
+        private Object[] getSlots(@Nonnull final ContextSchema schema) {
+            if (slotsSchema != schema || slots == null) {
+                slots = schema.toSlots(values);
+                slotsSchema = schema;
+            }
+            return slots;
+        }
+
+        @Nullable
+        private ValueExpression resolveVariable(@Nonnull final ExpressionFactory expressionFactory, final String variable) {
+            if (!values.containsKey(variable)) {
+                return null;
+            }
+            if (variables == null) {
+                variables = new HashMap<String, ValueExpression>();
+            }
+            ValueExpression ve = variables.get(variable);
+            if (ve == null) {
+                ve = expressionFactory.createValueExpression(values.get(variable), Object.class);
+                variables.put(variable, ve);
+            }
+            return ve;
+        }
+
+        @Nonnull
+        @Override
+        public ELResolver getELResolver() {
+            return BINDING_EL_RESOLVER;
+        }
+
+        @Nonnull
+        @Override
+        public FunctionMapper getFunctionMapper() {
+            return FUNCTION_MAPPER;
+        }
+
+        @Nonnull
+        @Override
+        public VariableMapper getVariableMapper() {
+            return NO_VARIABLES;
+        }
+
+        @Override
+        public Object getContext(final Class key) {
+            if (key == ContextValuesELResolver.class) {
+                return values;
+            }
+            return super.getContext(key);
+        }
+    }
+
+    /**
+     * Resolves test constants first, then the schema's variables to their slots. Tomcat's EL keeps whatever a
+     * variable resolves to while a rule is parsed, so compiled rules never look these names up again.
+     */
+    private class SlotVariableMapper extends VariableMapper {
+        @Nonnull
+        private final SlotExpression[] slots;
+
+        SlotVariableMapper(@Nonnull final ContextSchema contextSchema) {
+            final List<String> variables = contextSchema.getVariables();
+            slots = new SlotExpression[variables.size()];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new SlotExpression(contextSchema, i, variables.get(i));
+            }
+        }
+
+        @Nullable
+        @Override
+        public ValueExpression resolveVariable(final String variable) {
+            final ValueExpression constant = testConstants.get(variable);
+            if (constant != null) {
+                return constant;
+            }
+            final int slot = contextSchema.getSlot(variable);
+            return slot < 0 ? null : slots[slot];
+        }
+
+        @Override
+        public ValueExpression setVariable(final String variable, final ValueExpression expression) {
+            throw new IllegalStateException("Setting variables is not allowed");
+        }
+    }
+
+    /**
+     * A context variable of a compiled rule, read from the {@link Binding}'s slots
+     */
+    private static class SlotExpression extends ValueExpression {
+        @Nonnull
+        private final ContextSchema contextSchema;
+        private final int slot;
+        @Nonnull
+        private final String variable;
+
+        SlotExpression(@Nonnull final ContextSchema contextSchema, final int slot, @Nonnull final String variable) {
+            this.contextSchema = contextSchema;
+            this.slot = slot;
+            this.variable = variable;
+        }
+
+        @Override
+        public Object getValue(@Nonnull final ELContext context) {
+            final Object value = context instanceof Binding ? ((Binding) context).getSlots(contextSchema)[slot] : ContextSchema.ABSENT;
+            if (value == ContextSchema.ABSENT) {
+                // same as an identifier no resolver knows
+                throw new PropertyNotFoundException("Cannot resolve identifier '" + variable + "'");
+            }
+            return value;
+        }
+
+        @Override
+        public void setValue(final ELContext context, final Object value) {
+            throw new PropertyNotWritableException("Setting variables is not allowed");
+        }
+
+        @Override
+        public boolean isReadOnly(final ELContext context) {
+            return true;
+        }
+
+        @Nullable
+        @Override
+        public Class<?> getType(@Nonnull final ELContext context) {
+            final Object value = getValue(context);
+            return value == null ? null : value.getClass();
+        }
+
+        @Override
+        public Class<?> getExpectedType() {
+            return Object.class;
+        }
+
+        @Override
+        public String getExpressionString() {
+            return variable;
+        }
+
+        @Override
+        public boolean isLiteralText() {
+            return false;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof SlotExpression && ((SlotExpression) o).contextSchema == contextSchema && ((SlotExpression) o).slot == slot;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * contextSchema.hashCode() + slot;
+        }
+    }
+
+    /**
+     * Resolves test constants first, then the request's variables, like the constants and context maps did
+     * when both were converted in full for every rule.
+     */
+    private class BoundVariableMapper extends VariableMapper {
+        @Nonnull
+        private final Binding binding;
+
+        BoundVariableMapper(@Nonnull final Binding binding) {
+            this.binding = binding;
+        }
+
+        @Nullable
+        @Override
+        public ValueExpression resolveVariable(final String variable) {
+            final ValueExpression constant = testConstants.get(variable);
+            return constant != null ? constant : binding.resolveVariable(expressionFactory, variable);
+        }
+
+        @Override
+        public ValueExpression setVariable(final String variable, final ValueExpression expression) {
+            throw new IllegalStateException("Setting variables is not allowed");
+        }
+    }
+
+    /**
+     * Resolves top-level identifiers against the values bound to a {@link Binding}.
+     * A missing identifier stays unresolved, so the expression fails the same way as an unmapped variable.
+     */
+    private static class ContextValuesELResolver extends ELResolver {
+        @Nullable
+        @SuppressWarnings("unchecked")
+        private static Map<String, Object> getValues(@Nonnull final ELContext context, @Nullable final Object base) {
+            if (base != null) {
+                return null;
+            }
+            return (Map<String, Object>) context.getContext(ContextValuesELResolver.class);
+        }
+
+        @Nullable
+        @Override
+        public Object getValue(@Nonnull final ELContext context, @Nullable final Object base, final Object property) {
+            final Map<String, Object> values = getValues(context, base);
+            if (values == null || !values.containsKey(property)) {
+                return null;
+            }
+            context.setPropertyResolved(true);
+            return values.get(property);
+        }
+
+        @Nullable
+        @Override
+        public Class<?> getType(@Nonnull final ELContext context, @Nullable final Object base, final Object property) {
+            final Map<String, Object> values = getValues(context, base);
+            if (values == null || !values.containsKey(property)) {
+                return null;
+            }
+            context.setPropertyResolved(true);
+            final Object value = values.get(property);
+            return value == null ? null : value.getClass();
+        }
+
+        @Override
+        public void setValue(@Nonnull final ELContext context, @Nullable final Object base, final Object property, final Object value) {
+            final Map<String, Object> values = getValues(context, base);
+            if (values != null && values.containsKey(property)) {
+                throw new IllegalStateException("Setting variables is not allowed");
+            }
+        }
+
+        @Override
+        public boolean isReadOnly(@Nonnull final ELContext context, @Nullable final Object base, final Object property) {
+            final Map<String, Object> values = getValues(context, base);
+            if (values != null && values.containsKey(property)) {
+                context.setPropertyResolved(true);
+            }
+            return true;
+        }
+
+        @Nonnull
+        @Override
+        public Iterator<FeatureDescriptor> getFeatureDescriptors(final ELContext context, final Object base) {
+            return Collections.<FeatureDescriptor>emptyList().iterator();
+        }
+
+        @Nullable
+        @Override
+        public Class<?> getCommonPropertyType(final ELContext context, final Object base) {
+            return base == null ? String.class : null;
+        }
+    }
 }
@@ -0,0 +1,295 @@
+package com.indeed.proctor.common;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Booleans;
+import com.google.common.primitives.Ints;
+import com.indeed.proctor.common.model.ConsumableTestDefinition;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cheap checks of the top-level rules of a {@link Proctor}'s tests, done once per request before any rule is evaluated.
+ * <p>
+ * A test is excluded from a request when its rule is <code>${false}</code>, or when one of the top-level
+ * <code>&amp;&amp;</code> terms of its rule is a context variable compared to a string literal
+ * (<code>platform=='iOS'</code>) or a boolean context variable (<code>isBrandNewUser</code>) that the request's
+ * context makes false. Terms are indexed by variable, and equality terms by literal, so a request only looks up
+ * each indexed variable once.
+ * <p>
+ * The index only skips rules that would evaluate to false: tests that aren't excluded still have their whole rule
+ * evaluated, and variables missing from the context are left to the rule evaluator to report.
+ */
+final class RuleIndex {
+    private static final String IDENTIFIER = "[a-zA-Z_$][a-zA-Z_$0-9]*";
+    private static final String EQUALS = "(?:\\s*==\\s*|\\s+eq\\s+)";
+    private static final String LITERAL = "(['\"])([^'\"\\\\]*)";
+    private static final Pattern VARIABLE_EQUALS_LITERAL = Pattern.compile("(" + IDENTIFIER + ")" + EQUALS + LITERAL + "\\2");
+    private static final Pattern LITERAL_EQUALS_VARIABLE = Pattern.compile(LITERAL + "\\1" + EQUALS + "(" + IDENTIFIER + ")");
+    private static final Pattern VARIABLE = Pattern.compile(IDENTIFIER);
+    private static final Pattern OR_KEYWORD = Pattern.compile("\\bor\\b");
+    private static final Set<String> RESERVED_WORDS = ImmutableSet.of(
+            "and", "or", "not", "eq", "ne", "lt", "gt", "le", "ge", "true", "false", "null", "instanceof", "empty", "div", "mod");
+
+    /**
+     * Tests whose rule is always false
+     */
+    @Nonnull
+    private final boolean[] neverMatches;
+    private final boolean hasNeverMatches;
+    @Nonnull
+    private final VariableTerms[] variableTerms;
+
+    private RuleIndex(@Nonnull final boolean[] neverMatches, @Nonnull final List<VariableTerms> variableTerms) {
+        this.neverMatches = neverMatches;
+        this.hasNeverMatches = Booleans.contains(neverMatches, true);
+        this.variableTerms = variableTerms.toArray(new VariableTerms[variableTerms.size()]);
+    }
+
+    /**
+     * @param testDefinitions the definition of each test, in the order tests are numbered
+     */
+    @Nonnull
+    static RuleIndex build(@Nonnull final List<ConsumableTestDefinition> testDefinitions) {
+        final boolean[] neverMatches = new boolean[testDefinitions.size()];
+        final Map<String, Map<String, Set<Integer>>> equalityTests = Maps.newLinkedHashMap();
+        final Map<String, Set<Integer>> booleanTests = Maps.newLinkedHashMap();
+
+        for (int test = 0; test < testDefinitions.size(); test++) {
+            final ConsumableTestDefinition testDefinition = testDefinitions.get(test);
+            final String rule = testDefinition.getRule();
+            if (rule == null || !rule.startsWith("${") || !rule.endsWith("}")) {
+                continue;
+            }
+            final String bareRule = ProctorUtils.removeElExpressionBraces(rule);
+            if (bareRule == null) {
+                continue;
+            }
+            if ("false".equalsIgnoreCase(bareRule)) {
+                neverMatches[test] = true;
+                continue;
+            }
+            final Map<String, Object> constants = testDefinition.getConstants();
+            for (final String term : splitTopLevelConjunction(bareRule)) {
+                Matcher matcher = VARIABLE_EQUALS_LITERAL.matcher(term);
+                final String variable;
+                final String literal;
+                if (matcher.matches()) {
+                    variable = matcher.group(1);
+                    literal = matcher.group(3);
+                } else if ((matcher = LITERAL_EQUALS_VARIABLE.matcher(term)).matches()) {
+                    variable = matcher.group(3);
+                    literal = matcher.group(2);
+                } else if (VARIABLE.matcher(term).matches()) {
+                    variable = term;
+                    literal = null;
+                } else {
+                    continue;
+                }
+                if (RESERVED_WORDS.contains(variable) || (constants != null && constants.containsKey(variable))) {
+                    continue;
+                }
+                if (literal == null) {
+                    getOrCreate(booleanTests, variable).add(test);
+                } else {
+                    Map<String, Set<Integer>> testsByLiteral = equalityTests.get(variable);
+                    if (testsByLiteral == null) {
+                        testsByLiteral = Maps.newLinkedHashMap();
+                        equalityTests.put(variable, testsByLiteral);
+                    }
+                    getOrCreate(testsByLiteral, literal).add(test);
+                }
+            }
+        }
+
+        final Set<String> variables = Sets.newLinkedHashSet(equalityTests.keySet());
+        variables.addAll(booleanTests.keySet());
+        final List<VariableTerms> variableTerms = Lists.newArrayListWithCapacity(variables.size());
+        for (final String variable : variables) {
+            final Map<String, Set<Integer>> testsByLiteral = equalityTests.containsKey(variable)
+                    ? equalityTests.get(variable)
+                    : Collections.<String, Set<Integer>>emptyMap();
+            final Set<Integer> allEqualityTests = Sets.newTreeSet();
+            for (final Set<Integer> tests : testsByLiteral.values()) {
+                allEqualityTests.addAll(tests);
+            }
+            final Set<Integer> falseTests = booleanTests.containsKey(variable)
+                    ? booleanTests.get(variable)
+                    : Collections.<Integer>emptySet();
+            final Map<String, int[]> excludedByLiteral = Maps.newHashMapWithExpectedSize(testsByLiteral.size());
+            for (final String literal : testsByLiteral.keySet()) {
+                final Set<Integer> excluded = Sets.newTreeSet();
+                for (final Entry<String, Set<Integer>> entry : testsByLiteral.entrySet()) {
+                    if (!entry.getKey().equals(literal)) {
+                        excluded.addAll(entry.getValue());
+                    }
+                }
+                if (!"true".equalsIgnoreCase(literal)) {
+                    excluded.addAll(falseTests);
+                }
+                excludedByLiteral.put(literal, Ints.toArray(excluded));
+            }
+            final Set<Integer> equalityOrFalseTests = Sets.newTreeSet(allEqualityTests);
+            equalityOrFalseTests.addAll(falseTests);
+            variableTerms.add(new VariableTerms(
+                    variable,
+                    excludedByLiteral,
+                    Ints.toArray(allEqualityTests),
+                    Ints.toArray(equalityOrFalseTests),
+                    Ints.toArray(falseTests)));
+        }
+        return new RuleIndex(neverMatches, variableTerms);
+    }
+
+    /**
+     * @return excluded[i] is true if the rule of test i can't match this context, or null if no test is excluded
+     */
+    @Nullable
+    boolean[] findExcludedTests(@Nonnull final Map<String, Object> context) {
+        boolean[] excluded = hasNeverMatches ? neverMatches.clone() : null;
+        for (final VariableTerms terms : variableTerms) {
+            if (!context.containsKey(terms.variable)) {
+                continue;
+            }
+            final Object value = context.get(terms.variable);
+            final int[] tests = terms.findExcludedTests(value);
+            if (tests.length > 0) {
+                if (excluded == null) {
+                    excluded = new boolean[neverMatches.length];
+                }
+                for (final int test : tests) {
+                    excluded[test] = true;
+                }
+            }
+        }
+        return excluded;
+    }
+
+    /**
+     * Splits a rule at its top-level <code>&amp;&amp;</code>s. Rules with a top-level <code>||</code>, <code>or</code>,
+     * conditional, or an operator that binds looser than <code>&amp;&amp;</code> can't be split this way and come back whole.
+     */
+    @Nonnull
+    static List<String> splitTopLevelConjunction(@Nonnull final String rule) {
+        final List<String> terms = Lists.newArrayList();
+        int depth = 0;
+        char quote = 0;
+        int termStart = 0;
+        for (int i = 0; i < rule.length(); i++) {
+            final char c = rule.charAt(i);
+            if (quote != 0) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '(' || c == '[' || c == '{') {
+                depth++;
+            } else if (c == ')' || c == ']' || c == '}') {
+                depth--;
+            } else if (depth == 0) {
+                if (c == '|' || c == '?' || c == ';' || (c == '=' && SharedRules.isAssignment(rule, i))
+                        || (c == '-' && i + 1 < rule.length() && rule.charAt(i + 1) == '>')
+                        || (c == 'o' && OR_KEYWORD.matcher(rule).useTransparentBounds(true).region(i, rule.length()).lookingAt())) {
+                    return Collections.singletonList(rule.trim());
+                }
+                if (c == '&' && i + 1 < rule.length() && rule.charAt(i + 1) == '&') {
+                    terms.add(rule.substring(termStart, i).trim());
+                    termStart = i + 2;
+                    i++;
+                }
+            }
+        }
+        terms.add(rule.substring(termStart).trim());
+        return terms;
+    }
+
+    @Nonnull
+    private static <K> Set<Integer> getOrCreate(@Nonnull final Map<K, Set<Integer>> map, @Nonnull final K key) {
+        Set<Integer> set = map.get(key);
+        if (set == null) {
+            set = Sets.newTreeSet();
+            map.put(key, set);
+        }
+        return set;
+    }
+
+    /**
+     * The indexed terms of every test that tests one context variable, and the tests they exclude for each kind of value
+     */
+    private static final class VariableTerms {
+        private static final int[] NONE = new int[0];
+
+        @Nonnull
+        private final String variable;
+        /**
+         * For each literal the variable is compared to: the tests comparing it to another literal, and the boolean
+         * terms if the literal isn't "true"
+         */
+        @Nonnull
+        private final Map<String, int[]> excludedByLiteral;
+        /**
+         * Excluded by a String that no test compares the variable to and that coerces to true
+         */
+        @Nonnull
+        private final int[] excludedByOtherTrueString;
+        /**
+         * Excluded by null, or a String that no test compares the variable to and that coerces to false
+         */
+        @Nonnull
+        private final int[] excludedByOtherFalseValue;
+        /**
+         * Excluded by {@link Boolean#FALSE}
+         */
+        @Nonnull
+        private final int[] excludedByFalse;
+
+        private VariableTerms(
+                @Nonnull final String variable,
+                @Nonnull final Map<String, int[]> excludedByLiteral,
+                @Nonnull final int[] excludedByOtherTrueString,
+                @Nonnull final int[] excludedByOtherFalseValue,
+                @Nonnull final int[] excludedByFalse
+        ) {
+            this.variable = variable;
+            this.excludedByLiteral = excludedByLiteral;
+            this.excludedByOtherTrueString = excludedByOtherTrueString;
+            this.excludedByOtherFalseValue = excludedByOtherFalseValue;
+            this.excludedByFalse = excludedByFalse;
+        }
+
+        /**
+         * Mirrors EL coercion: <code>null == 'x'</code> is false, a String is compared as is,
+         * and null, false and any String but "true" coerce to false. Other values are left to the rule.
+         */
+        @Nonnull
+        private int[] findExcludedTests(@Nullable final Object value) {
+            if (value == null) {
+                return excludedByOtherFalseValue;
+            }
+            if (value instanceof String) {
+                final int[] excluded = excludedByLiteral.get(value);
+                if (excluded != null) {
+                    return excluded;
+                }
+                return "true".equalsIgnoreCase((String) value) ? excludedByOtherTrueString : excludedByOtherFalseValue;
+            }
+            if (Boolean.FALSE.equals(value)) {
+                return excludedByFalse;
+            }
+            return NONE;
+        }
+    }
+}
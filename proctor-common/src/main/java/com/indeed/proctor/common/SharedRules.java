@@ -0,0 +1,302 @@
+package com.indeed.proctor.common;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.indeed.proctor.common.model.Allocation;
+import com.indeed.proctor.common.model.ConsumableTestDefinition;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.el.FunctionMapper;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The rules of a {@link Proctor}'s tests broken into terms that all tests share, so that a term appearing in many
+ * rules, like <code>isBrandNewUser</code> or <code>proctor:endsWith(userId, '1')</code>, is evaluated at most once
+ * per request.
+ * <p>
+ * A rule is split at its top-level <code>||</code>s, and each part at its top-level <code>&amp;&amp;</code>s. Terms are
+ * evaluated left to right and short-circuit like the operators do, so a rule gives the same result, and fails on the
+ * same term, as it does when evaluated whole. Rules that refer to test constants, and rules with a term that doesn't
+ * compile on its own, are not shared and are left to the test's own {@link RuleEvaluator}.
+ */
+final class SharedRules {
+    private static final Pattern IDENTIFIER = Pattern.compile("[a-zA-Z_$][a-zA-Z_$0-9]*");
+    private static final Pattern QUOTED = Pattern.compile("'(?:[^'\\\\]|\\\\.)*'|\"(?:[^\"\\\\]|\\\\.)*\"");
+    private static final Pattern OR_KEYWORD = Pattern.compile("\\bor\\b");
+
+    // results of terms not evaluated yet are 0
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte FAILED = 3;
+
+    @Nonnull
+    private final RuleEvaluator ruleEvaluator;
+    /**
+     * Each term as a rule of its own, indexed by term id
+     */
+    @Nonnull
+    private final String[] terms;
+    /**
+     * The term ids of each top-level disjunct of each shared rule
+     */
+    @Nonnull
+    private final Map<String, int[][]> rules;
+
+    private SharedRules(@Nonnull final RuleEvaluator ruleEvaluator, @Nonnull final List<String> terms, @Nonnull final Map<String, int[][]> rules) {
+        this.ruleEvaluator = ruleEvaluator;
+        this.terms = terms.toArray(new String[terms.size()]);
+        this.rules = rules;
+    }
+
+    @Nonnull
+    static SharedRules build(@Nonnull final Collection<ConsumableTestDefinition> testDefinitions, @Nullable final FunctionMapper functionMapper) {
+        return build(testDefinitions, functionMapper, null);
+    }
+
+    /**
+     * @param contextSchema the variables the terms read by slot, may be null
+     */
+    @Nonnull
+    static SharedRules build(
+            @Nonnull final Collection<ConsumableTestDefinition> testDefinitions,
+            @Nullable final FunctionMapper functionMapper,
+            @Nullable final ContextSchema contextSchema
+    ) {
+        final RuleEvaluator ruleEvaluator = new RuleEvaluator(RuleEvaluator.EXPRESSION_FACTORY, functionMapper, Collections.<String, Object>emptyMap(), contextSchema);
+        final List<String> terms = Lists.newArrayList();
+        final Map<String, Integer> termIds = Maps.newHashMap();
+        final Map<String, int[][]> rules = Maps.newHashMap();
+        final Set<String> unshared = Sets.newHashSet();
+
+        for (final ConsumableTestDefinition testDefinition : testDefinitions) {
+            final List<String> testRules = Lists.newArrayList();
+            testRules.add(testDefinition.getRule());
+            for (final Allocation allocation : testDefinition.getAllocations()) {
+                testRules.add(allocation.getRule());
+            }
+            for (final String rule : testRules) {
+                if (rule == null || unshared.contains(rule)) {
+                    continue;
+                }
+                if (usesConstants(rule, testDefinition.getConstants())) {
+                    // the same rule means something else in this test
+                    unshared.add(rule);
+                    rules.remove(rule);
+                    continue;
+                }
+                if (rules.containsKey(rule)) {
+                    continue;
+                }
+                final int[][] disjuncts = split(rule, ruleEvaluator, terms, termIds);
+                if (disjuncts == null) {
+                    unshared.add(rule);
+                } else {
+                    rules.put(rule, disjuncts);
+                }
+            }
+        }
+        return new SharedRules(ruleEvaluator, terms, rules);
+    }
+
+    /**
+     * @return the term ids of each top-level disjunct, or null if the rule can't be shared
+     */
+    @Nullable
+    private static int[][] split(
+            @Nonnull final String rule,
+            @Nonnull final RuleEvaluator ruleEvaluator,
+            @Nonnull final List<String> terms,
+            @Nonnull final Map<String, Integer> termIds
+    ) {
+        if (!rule.startsWith("${") || !rule.endsWith("}")) {
+            return null;
+        }
+        final String bareRule = ProctorUtils.removeElExpressionBraces(rule);
+        if (bareRule == null) {
+            return null;
+        }
+        final List<String> disjuncts = splitTopLevelDisjunction(bareRule);
+        final int[][] result = new int[disjuncts.size()][];
+        for (int i = 0; i < disjuncts.size(); i++) {
+            final List<String> conjuncts = RuleIndex.splitTopLevelConjunction(disjuncts.get(i));
+            result[i] = new int[conjuncts.size()];
+            for (int j = 0; j < conjuncts.size(); j++) {
+                final String term = "${" + conjuncts.get(j) + "}";
+                Integer termId = termIds.get(term);
+                if (termId == null) {
+                    // also rejects "true", "false" and empty terms, which aren't worth sharing
+                    if (!ruleEvaluator.compileRule(term)) {
+                        return null;
+                    }
+                    termId = terms.size();
+                    terms.add(term);
+                    termIds.put(term, termId);
+                }
+                result[i][j] = termId;
+            }
+        }
+        return result;
+    }
+
+    private static boolean usesConstants(@Nonnull final String rule, @Nullable final Map<String, Object> constants) {
+        if (constants == null || constants.isEmpty()) {
+            return false;
+        }
+        final Matcher matcher = IDENTIFIER.matcher(QUOTED.matcher(rule).replaceAll("''"));
+        while (matcher.find()) {
+            if (constants.containsKey(matcher.group())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits a rule at its top-level <code>||</code>s and <code>or</code>s. Rules with a top-level conditional, or
+     * an operator that binds looser than <code>||</code>, come back whole.
+     */
+    @Nonnull
+    static List<String> splitTopLevelDisjunction(@Nonnull final String rule) {
+        final List<String> terms = Lists.newArrayList();
+        int depth = 0;
+        char quote = 0;
+        int termStart = 0;
+        for (int i = 0; i < rule.length(); i++) {
+            final char c = rule.charAt(i);
+            if (quote != 0) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '(' || c == '[' || c == '{') {
+                depth++;
+            } else if (c == ')' || c == ']' || c == '}') {
+                depth--;
+            } else if (depth == 0) {
+                if (c == '?' || c == ';' || (c == '=' && isAssignment(rule, i)) || (c == '-' && i + 1 < rule.length() && rule.charAt(i + 1) == '>')) {
+                    return Collections.singletonList(rule.trim());
+                }
+                if (c == '|' && i + 1 < rule.length() && rule.charAt(i + 1) == '|') {
+                    terms.add(rule.substring(termStart, i).trim());
+                    termStart = i + 2;
+                    i++;
+                } else if (c == 'o' && OR_KEYWORD.matcher(rule).useTransparentBounds(true).region(i, rule.length()).lookingAt()) {
+                    terms.add(rule.substring(termStart, i).trim());
+                    termStart = i + 2;
+                    i++;
+                }
+            }
+        }
+        terms.add(rule.substring(termStart).trim());
+        return terms;
+    }
+
+    /**
+     * @return true if the '=' at i is not part of ==, !=, &lt;= or &gt;=
+     */
+    static boolean isAssignment(@Nonnull final String rule, final int i) {
+        final char previous = i > 0 ? rule.charAt(i - 1) : 0;
+        final char next = i + 1 < rule.length() ? rule.charAt(i + 1) : 0;
+        return next != '=' && previous != '=' && previous != '!' && previous != '<' && previous != '>';
+    }
+
+    /**
+     * @return the evaluation of the shared rules for one request, which also carries the request's
+     *         {@link RuleEvaluator.Binding} for the rules that aren't shared
+     */
+    @Nonnull
+    Evaluation newEvaluation(@Nonnull final Map<String, Object> values) {
+        return new Evaluation(new RuleEvaluator.Binding(values));
+    }
+
+    int getTermCount() {
+        return terms.length;
+    }
+
+    /**
+     * The shared rules evaluated against one request's context. Not thread-safe; use one per request.
+     */
+    final class Evaluation {
+        @Nonnull
+        private final RuleEvaluator.Binding binding;
+        @Nonnull
+        private final byte[] results;
+        @Nullable
+        private RuntimeException[] failures;
+
+        private Evaluation(@Nonnull final RuleEvaluator.Binding binding) {
+            this.binding = binding;
+            this.results = new byte[terms.length];
+        }
+
+        @Nonnull
+        RuleEvaluator.Binding getBinding() {
+            return binding;
+        }
+
+        /**
+         * @return the value of the rule, or null if the rule isn't shared
+         * @throws RuntimeException like {@link RuleEvaluator#evaluateBooleanRule(String, Map)} when the rule fails
+         */
+        @Nullable
+        Boolean evaluate(@Nullable final String rule) {
+            if (rule == null) {
+                return null;
+            }
+            final int[][] disjuncts = rules.get(rule);
+            if (disjuncts == null) {
+                return null;
+            }
+            for (final int[] conjuncts : disjuncts) {
+                boolean matches = true;
+                for (final int term : conjuncts) {
+                    if (!evaluateTerm(term)) {
+                        matches = false;
+                        break;
+                    }
+                }
+                if (matches) {
+                    return Boolean.TRUE;
+                }
+            }
+            return Boolean.FALSE;
+        }
+
+        private boolean evaluateTerm(final int term) {
+            switch (results[term]) {
+                case TRUE:
+                    return true;
+                case FALSE:
+                    return false;
+                case FAILED:
+                    throw failures[term];
+                default:
+                    break;
+            }
+            final boolean result;
+            try {
+                result = ruleEvaluator.evaluateBooleanRule(terms[term], binding);
+            } catch (@Nonnull final RuntimeException e) {
+                if (failures == null) {
+                    failures = new RuntimeException[terms.length];
+                }
+                failures[term] = e;
+                results[term] = FAILED;
+                throw e;
+            }
+            results[term] = result ? TRUE : FALSE;
+            return result;
+        }
+    }
+}
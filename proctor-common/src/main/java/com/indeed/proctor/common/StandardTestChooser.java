@@ -13,7 +13,9 @@ import com.indeed.proctor.common.model.TestBucket;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.security.DigestException;
 import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import javax.annotation.Nonnull;
@@ -33,7 +35,7 @@ class StandardTestChooser implements TestChooser<String> {
     @Nonnull
     private final Hasher hasher;
     @Nonnull
-    private final int[][] cutoffs;
+    private final BucketLookup[] bucketLookups;
 
     public StandardTestChooser(
             @Nonnull final ExpressionFactory expressionFactory,
@@ -44,6 +46,16 @@ class StandardTestChooser implements TestChooser<String> {
         this(new TestRangeSelector(expressionFactory, functionMapper, testName, testDefinition));
     }
 
+    StandardTestChooser(
+            @Nonnull final ExpressionFactory expressionFactory,
+            @Nonnull final FunctionMapper functionMapper,
+            @Nullable final ContextSchema contextSchema,
+            @Nonnull final String testName,
+            @Nonnull final ConsumableTestDefinition testDefinition
+    ) {
+        this(new TestRangeSelector(expressionFactory, functionMapper, contextSchema, testName, testDefinition));
+    }
+
     @VisibleForTesting
     StandardTestChooser(@Nonnull final TestRangeSelector selector) {
         this.testRangeSelector = selector;
@@ -57,11 +69,12 @@ class StandardTestChooser implements TestChooser<String> {
         }
 
         final List<Allocation> allocations = testDefinition.getAllocations();
-        this.cutoffs = new int[allocations.size()][];
+        this.bucketLookups = new BucketLookup[allocations.size()];
         for (int i = 0; i < allocations.size(); i++) {
             final Allocation allocation = allocations.get(i);
             final List<Range> ranges = allocation.getRanges();
-            cutoffs[i] = constructCutoffArray(allocation.getRule(), ranges);
+            final int[] cutoffs = constructCutoffArray(allocation.getRule(), ranges);
+            bucketLookups[i] = BucketLookup.create(cutoffs, selector.getBucketRange(i));
         }
     }
 
@@ -123,17 +136,66 @@ class StandardTestChooser implements TestChooser<String> {
             return null;
         }
 
-        return chooseBucket(
-                cutoffs[matchingRuleIndex],
-                testRangeSelector.getBucketRange(matchingRuleIndex),
-                Preconditions.checkNotNull(identifier, "Missing identifier"));
+        final int value = hasher.hash(Preconditions.checkNotNull(identifier, "Missing identifier"));
+        return bucketLookups[matchingRuleIndex].choose(value);
+    }
+
+    /**
+     * Same as {@link #choose(String, Map)}, but reuses the hash of the identifier when another test with the same
+     * {@link #getHashSalt() hash salt} already computed it for this request.
+     *
+     * @param hashes the hashes computed so far for this request
+     * @param hashSlot the slot {@link Proctor} assigned to this test's hash salt and test type
+     * @param sharedRules the request's evaluation of the rules shared between tests, may be null
+     */
+    @Nullable
+    TestBucket choose(
+            @Nonnull final String identifier,
+            @Nonnull final Map<String, Object> values,
+            @Nonnull final IdentifierHashes hashes,
+            final int hashSlot,
+            @Nullable final SharedRules.Evaluation sharedRules
+    ) {
+        final int matchingRuleIndex = testRangeSelector.findMatchingRule(values, sharedRules);
+        if (matchingRuleIndex < 0) {
+            return null;
+        }
+
+        final int value;
+        if (hashes.contains(hashSlot)) {
+            value = hashes.get(hashSlot);
+        } else {
+            value = hasher.hash(identifier);
+            hashes.put(hashSlot, value);
+        }
+        return bucketLookups[matchingRuleIndex].choose(value);
+    }
+
+    /**
+     * @return the salt hashed ahead of the identifier; tests with equal hash salts hash an identifier to the same value
+     */
+    @Nonnull
+    String getHashSalt() {
+        return hasher.getSalt();
+    }
+
+    /**
+     * @return the index of the first allocation whose rule matches, or -1 if the test (or no allocation) applies
+     */
+    int findMatchingRule(@Nonnull final Map<String, Object> values, @Nullable final SharedRules.Evaluation sharedRules) {
+        return testRangeSelector.findMatchingRule(values, sharedRules);
+    }
+
+    int hash(@Nonnull final String identifier) {
+        return hasher.hash(identifier);
     }
 
-    private TestBucket chooseBucket(@Nonnull final int[] matchingCutoffs, final TestBucket[] matchingBucketRange, @Nonnull final String identifier) {
-        final int value = hasher.hash(identifier);
-        int i;
-        for (i = 0; i < matchingCutoffs.length && value > matchingCutoffs[i]; i++) { /* intentionally empty */ }
-        return matchingBucketRange[i];
+    /**
+     * @param matchingRuleIndex a non-negative result of {@link #findMatchingRule(Map, SharedRules.Evaluation)}
+     * @param hash the {@link #hash(String)} of the identifier
+     */
+    TestBucket chooseBucket(final int matchingRuleIndex, final int hash) {
+        return bucketLookups[matchingRuleIndex].choose(hash);
     }
 
     private Map<String, String> getDescriptorParameters() {
@@ -182,33 +244,139 @@ class StandardTestChooser implements TestChooser<String> {
         return testRangeSelector.getTestName();
     }
 
+    /**
+     * Maps a hash value to the bucket of the first cutoff it does not exceed, i.e. the same bucket as
+     * {@code for (i = 0; i < cutoffs.length && value > cutoffs[i]; i++); return buckets[i];}
+     * <p>
+     * Neighbouring ranges that share a bucket are coalesced, and the remaining cutoffs are binary searched.
+     * Both are only valid for non-decreasing cutoffs, so anything else (e.g. negative range lengths) keeps the linear scan.
+     */
+    @VisibleForTesting
+    static final class BucketLookup {
+        @Nonnull
+        private final int[] cutoffs;
+        @Nonnull
+        private final TestBucket[] buckets;
+        private final boolean sorted;
+
+        private BucketLookup(@Nonnull final int[] cutoffs, @Nonnull final TestBucket[] buckets, final boolean sorted) {
+            this.cutoffs = cutoffs;
+            this.buckets = buckets;
+            this.sorted = sorted;
+        }
+
+        /**
+         * @param cutoffs one cutoff between each pair of neighbouring ranges
+         * @param buckets the bucket of each range, one more than there are cutoffs
+         */
+        @Nonnull
+        static BucketLookup create(@Nonnull final int[] cutoffs, @Nonnull final TestBucket[] buckets) {
+            Preconditions.checkArgument(buckets.length == cutoffs.length + 1, "Expected %s buckets for %s cutoffs", cutoffs.length + 1, cutoffs.length);
+            for (int i = 1; i < cutoffs.length; i++) {
+                if (cutoffs[i - 1] > cutoffs[i]) {
+                    return new BucketLookup(cutoffs, buckets, false);
+                }
+            }
+
+            int size = 0;
+            final int[] coalescedCutoffs = new int[cutoffs.length];
+            final TestBucket[] coalescedBuckets = new TestBucket[buckets.length];
+            for (int i = 0; i < cutoffs.length; i++) {
+                // a cutoff between two ranges of the same bucket never changes the result
+                if (buckets[i] != buckets[i + 1]) {
+                    coalescedCutoffs[size] = cutoffs[i];
+                    coalescedBuckets[size] = buckets[i];
+                    size++;
+                }
+            }
+            coalescedBuckets[size] = buckets[buckets.length - 1];
+
+            return new BucketLookup(Arrays.copyOf(coalescedCutoffs, size), Arrays.copyOf(coalescedBuckets, size + 1), true);
+        }
+
+        TestBucket choose(final int value) {
+            if (!sorted) {
+                int i;
+                for (i = 0; i < cutoffs.length && value > cutoffs[i]; i++) { /* intentionally empty */ }
+                return buckets[i];
+            }
+            int low = 0;
+            int high = cutoffs.length;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (value > cutoffs[mid]) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return buckets[low];
+        }
+
+        int size() {
+            return buckets.length;
+        }
+    }
+
     /**
      * @author matts
      */
-    private static interface Hasher {
+    @VisibleForTesting
+    static interface Hasher {
         public int hash(@Nonnull String identifier);
+
+        @Nonnull
+        public String getSalt();
     }
 
     /**
      * @author matts
      */
     private abstract static class AbstractMD5Hasher implements Hasher {
+        /**
+         * Per-thread MD5 state and scratch buffers shared by all hashers, so hashing an identifier allocates nothing.
+         */
+        private static final ThreadLocal<HashingBuffers> BUFFERS = new ThreadLocal<HashingBuffers>() {
+            @Override
+            protected HashingBuffers initialValue() {
+                return new HashingBuffers();
+            }
+        };
+
+        @Nonnull
+        private final String salt;
         private final byte[] bytes;
 
-        public AbstractMD5Hasher(final String salt) {
+        public AbstractMD5Hasher(@Nonnull final String salt) {
+            this.salt = salt;
             this.bytes = salt.getBytes(Charsets.UTF_8);
         }
 
+        @Nonnull
+        @Override
+        public String getSalt() {
+            return salt;
+        }
+
         @Override
         public int hash(@Nonnull final String identifier) {
-            final MessageDigest md = ProctorUtils.createMessageDigest();
+            final HashingBuffers buffers = BUFFERS.get();
+            final MessageDigest md = buffers.md;
 
+            // md is always in its initial state here: digest() resets it.
+            // Re-priming with the salt is a copy into MD5's block buffer for salts under 64 bytes,
+            // which is cheaper than cloning a pre-salted digest (clone() allocates).
             md.update(bytes);
-            md.update(identifier.getBytes(Charsets.UTF_8));
+            final int length = buffers.encode(identifier);
+            md.update(buffers.encoded, 0, length);
 
-            final byte[] digest = md.digest();
+            try {
+                md.digest(buffers.digest, 0, buffers.digest.length);
+            } catch (@Nonnull final DigestException e) {
+                throw new IllegalStateException("Unable to compute MD5 digest", e);
+            }
 
-            return convertToInt(digest);
+            return convertToInt(buffers.digest);
         }
 
         private static int convertToInt(final byte[] digest) {
@@ -220,6 +388,54 @@ class StandardTestChooser implements TestChooser<String> {
         }
     }
 
+    private static final class HashingBuffers {
+        private static final int MD5_LENGTH = 16;
+
+        private final MessageDigest md = ProctorUtils.createMessageDigest();
+        private final byte[] digest = new byte[MD5_LENGTH];
+        private byte[] encoded = new byte[64];
+
+        /**
+         * Encodes the identifier into {@link #encoded} exactly as {@code identifier.getBytes(Charsets.UTF_8)} would,
+         * including the '?' replacement of unpaired surrogates.
+         *
+         * @return the number of bytes written
+         */
+        int encode(@Nonnull final String identifier) {
+            final int numChars = identifier.length();
+            // at most 3 bytes per char: supplementary characters take 4 bytes for 2 chars
+            if (encoded.length < numChars * 3) {
+                encoded = new byte[numChars * 3];
+            }
+            final byte[] out = encoded;
+            int length = 0;
+            for (int i = 0; i < numChars; i++) {
+                final char c = identifier.charAt(i);
+                if (c < 0x80) {
+                    out[length++] = (byte) c;
+                } else if (c < 0x800) {
+                    out[length++] = (byte) (0xc0 | (c >> 6));
+                    out[length++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    if (Character.isHighSurrogate(c) && i + 1 < numChars && Character.isLowSurrogate(identifier.charAt(i + 1))) {
+                        final int codePoint = Character.toCodePoint(c, identifier.charAt(++i));
+                        out[length++] = (byte) (0xf0 | (codePoint >> 18));
+                        out[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                        out[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                        out[length++] = (byte) (0x80 | (codePoint & 0x3f));
+                    } else {
+                        out[length++] = (byte) '?';
+                    }
+                } else {
+                    out[length++] = (byte) (0xe0 | (c >> 12));
+                    out[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    out[length++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            return length;
+        }
+    }
+
     // Legacy salting technique
     private static class TestNameAndSaltHasher extends AbstractMD5Hasher {
         private TestNameAndSaltHasher(@Nonnull final TestRangeSelector selector) {
@@ -38,7 +38,39 @@ public class TestRangeSelector {
     private final RuleEvaluator ruleEvaluator;
 
     TestRangeSelector(@Nonnull final ExpressionFactory expressionFactory, @Nonnull final FunctionMapper functionMapper, final String testName, @Nonnull final ConsumableTestDefinition testDefinition) {
-        this(new RuleEvaluator(expressionFactory, functionMapper, testDefinition.getConstants()), testName, testDefinition);
+        this(expressionFactory, functionMapper, null, testName, testDefinition);
+    }
+
+    /**
+     * @param contextSchema the variables the rules read by slot, may be null
+     */
+    TestRangeSelector(
+            @Nonnull final ExpressionFactory expressionFactory,
+            @Nonnull final FunctionMapper functionMapper,
+            @Nullable final ContextSchema contextSchema,
+            final String testName,
+            @Nonnull final ConsumableTestDefinition testDefinition
+    ) {
+        this(newCompiledRuleEvaluator(expressionFactory, functionMapper, contextSchema, testDefinition), testName, testDefinition);
+    }
+
+    /**
+     * Creates a {@link RuleEvaluator} with the test rule and every allocation rule already compiled,
+     * so that {@link #findMatchingRule(Map)} never parses EL on the request path.
+     */
+    @Nonnull
+    private static RuleEvaluator newCompiledRuleEvaluator(
+            @Nonnull final ExpressionFactory expressionFactory,
+            @Nonnull final FunctionMapper functionMapper,
+            @Nullable final ContextSchema contextSchema,
+            @Nonnull final ConsumableTestDefinition testDefinition
+    ) {
+        final RuleEvaluator ruleEvaluator = new RuleEvaluator(expressionFactory, functionMapper, testDefinition.getConstants(), contextSchema);
+        ruleEvaluator.compileRule(testDefinition.getRule());
+        for (final Allocation allocation : testDefinition.getAllocations()) {
+            ruleEvaluator.compileRule(allocation.getRule());
+        }
+        return ruleEvaluator;
     }
 
     TestRangeSelector(
@@ -75,16 +107,24 @@ public class TestRangeSelector {
     }
 
     public int findMatchingRule(@Nonnull final Map<String, Object> values) {
+        return findMatchingRule(values, null);
+    }
+
+    /**
+     * @param sharedRules the request's evaluation of the rules shared between tests, whose binding also serves the rules
+     *                    that aren't shared; or null to evaluate every rule here on its own
+     */
+    int findMatchingRule(@Nonnull final Map<String, Object> values, @Nullable final SharedRules.Evaluation sharedRules) {
         try {
             @Nullable final String rule = testDefinition.getRule();
             if (rule != null) {
-                if (! evaluateRule(rule, values)) {
+                if (! evaluateRule(rule, values, sharedRules)) {
                     return -1;
                 }
             }
 
             for (int i = 0; i < rules.length; i++) {
-                if (evaluateRule(rules[i], values)) {
+                if (evaluateRule(rules[i], values, sharedRules)) {
                     return i;
                 }
             }
@@ -96,8 +136,19 @@ public class TestRangeSelector {
         return -1;
     }
 
-    private boolean evaluateRule(final String rule, @Nonnull final Map<String, Object> values) throws InvalidRuleException {
+    private boolean evaluateRule(
+            final String rule,
+            @Nonnull final Map<String, Object> values,
+            @Nullable final SharedRules.Evaluation sharedRules
+    ) throws InvalidRuleException {
         try {
+            if (sharedRules != null) {
+                final Boolean result = sharedRules.evaluate(rule);
+                if (result != null) {
+                    return result;
+                }
+                return ruleEvaluator.evaluateBooleanRule(rule, sharedRules.getBinding());
+            }
             return ruleEvaluator.evaluateBooleanRule(rule, values);
 
         } catch (@Nonnull final RuntimeException e) {
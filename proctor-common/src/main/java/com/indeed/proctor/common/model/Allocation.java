@@ -25,6 +25,11 @@ public class Allocation {
 
     public Allocation(@Nonnull final Allocation other) {
         this.rule = other.rule;
+        if (other.ranges instanceof RangeList) {
+            // read-only, nothing to copy
+            this.ranges = other.ranges;
+            return;
+        }
         this.ranges = new ArrayList<Range>();
         for (final Range range : other.getRanges()) {
             this.ranges.add(new Range(range));
@@ -0,0 +1,151 @@
+package com.indeed.proctor.common.model;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * Read-only list of ranges backed by primitive arrays, for allocations with thousands of ranges
+ * such as the 10,000-range layouts generated by {@link com.indeed.proctor.common.RemoteProctorLoader}.
+ * Neighbouring ranges with the same bucket value and length are stored once as a run with a count,
+ * and when all ranges have the same length it is stored only once.
+ *
+ * To everything else this is an ordinary {@code List<Range>}, so Jackson still writes the verbose form, and reads it
+ * back into an ordinary editable list. {@link Range}s are created on access; changing them does not change the list.
+ */
+public final class RangeList extends AbstractList<Range> implements RandomAccess {
+    @Nonnull
+    private final int[] bucketValues;
+    /**
+     * Exclusive end index of each run
+     */
+    @Nonnull
+    private final int[] ends;
+    /**
+     * Length of each run's ranges, or null if all ranges have {@link #length}
+     */
+    @Nullable
+    private final double[] lengths;
+    private final double length;
+
+    private RangeList(@Nonnull final int[] bucketValues, @Nonnull final int[] ends, @Nullable final double[] lengths, final double length) {
+        this.bucketValues = bucketValues;
+        this.ends = ends;
+        this.lengths = lengths;
+        this.length = length;
+    }
+
+    /**
+     * @param bucketValues the bucket value of each range
+     * @param length the length of every range
+     */
+    @Nonnull
+    public static RangeList of(@Nonnull final int[] bucketValues, final double length) {
+        final int[] runValues = new int[bucketValues.length];
+        final int[] ends = new int[bucketValues.length];
+        int runs = 0;
+        for (int i = 0; i < bucketValues.length; i++) {
+            if (runs == 0 || runValues[runs - 1] != bucketValues[i]) {
+                runValues[runs++] = bucketValues[i];
+            }
+            ends[runs - 1] = i + 1;
+        }
+        return new RangeList(Arrays.copyOf(runValues, runs), Arrays.copyOf(ends, runs), null, length);
+    }
+
+    @Nonnull
+    public static RangeList copyOf(@Nonnull final List<Range> ranges) {
+        if (ranges instanceof RangeList) {
+            return (RangeList) ranges;
+        }
+        final int size = ranges.size();
+        final int[] runValues = new int[size];
+        final int[] ends = new int[size];
+        final double[] runLengths = new double[size];
+        boolean uniform = true;
+        int runs = 0;
+        int i = 0;
+        for (final Range range : ranges) {
+            Preconditions.checkNotNull(range, "Missing range at %s", i);
+            // compare the bits so that the doubles read back are exactly the ones written
+            if (runs == 0 || runValues[runs - 1] != range.getBucketValue()
+                    || Double.doubleToLongBits(runLengths[runs - 1]) != Double.doubleToLongBits(range.getLength())) {
+                runValues[runs] = range.getBucketValue();
+                runLengths[runs] = range.getLength();
+                uniform &= Double.doubleToLongBits(runLengths[runs]) == Double.doubleToLongBits(runLengths[0]);
+                runs++;
+            }
+            ends[runs - 1] = ++i;
+        }
+        return new RangeList(Arrays.copyOf(runValues, runs), Arrays.copyOf(ends, runs),
+                uniform ? null : Arrays.copyOf(runLengths, runs), runs == 0 ? 0 : runLengths[0]);
+    }
+
+    /**
+     * @return the number of runs of equal neighbouring ranges
+     */
+    public int getRunCount() {
+        return ends.length;
+    }
+
+    @Override
+    public Range get(final int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        final int search = Arrays.binarySearch(ends, index);
+        // ends are exclusive, so an exact match belongs to the next run
+        return createRange(search >= 0 ? search + 1 : -search - 1);
+    }
+
+    @Override
+    public int size() {
+        return ends.length == 0 ? 0 : ends[ends.length - 1];
+    }
+
+    @Override
+    public Iterator<Range> iterator() {
+        return new Iterator<Range>() {
+            private int index = 0;
+            private int run = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < size();
+            }
+
+            @Override
+            public Range next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                while (index >= ends[run]) {
+                    run++;
+                }
+                index++;
+                return createRange(run);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Nonnull
+    private Range createRange(final int run) {
+        // not through the checking constructor, the values were already accepted once
+        final Range range = new Range();
+        range.setBucketValue(bucketValues[run]);
+        range.setLength(lengths == null ? length : lengths[run]);
+        return range;
+    }
+}
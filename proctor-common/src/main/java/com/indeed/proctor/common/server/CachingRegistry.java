@@ -0,0 +1,97 @@
+package com.indeed.proctor.common.server;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.indeed.proctor.common.ProctorResult;
+import io.vertx.core.Handler;
+
+import javax.annotation.Nonnull;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在 {@link Registry} 前面加一层本地缓存，同一个设备短时间内再次访问时不用再读 Mongo。
+ * 写入先让缓存失效再交给下层，下层接受或确认之后才放进缓存，被丢弃的写入下次还会再写；
+ * 读到的结果只在缓存里没有时才放进去，不会覆盖更新的写入。
+ * 同一个请求里多次读取（{@link InputContexts} 和分组合并）只读一次。
+ */
+public class CachingRegistry extends Registry {
+
+    // 所有实例共享。其它服务器写入的记录要等缓存过期才能看到
+    private static final Cache<String, Entry> cache = CacheBuilder.newBuilder()
+            .maximumSize(Config.REGISTRY_CACHE_SIZE)
+            .expireAfterWrite(Config.REGISTRY_CACHE_TTL_SECONDS, TimeUnit.SECONDS)
+            .build();
+
+    @Nonnull
+    private final Registry delegate;
+
+    public CachingRegistry(@Nonnull Registry delegate) {
+        super(delegate.vertx, delegate.context, delegate.mongoClient);
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void setupPeriodic() {
+        delegate.setupPeriodic();
+    }
+
+    @Override
+    public void update(@Nonnull RequestScope requestScope, @Nonnull ProctorResult proctorResult,
+                       @Nonnull Handler<Map<String, String>> storedHandler) {
+        if (requestScope.registryUnreadable) {
+            return;
+        }
+        String deviceId = requestScope.deviceId;
+        cache.invalidate(deviceId);
+        delegate.update(requestScope, proctorResult, data -> {
+            cache.put(deviceId, new Entry(ImmutableMap.copyOf(data), true));
+            storedHandler.handle(data);
+        });
+    }
+
+    @Override
+    public void get(@Nonnull RequestScope requestScope, @Nonnull Handler<ProctorResult> resultHandler) {
+        if (requestScope.registryLoaded) {
+            resultHandler.handle(requestScope.registryResult);
+            return;
+        }
+        String deviceId = requestScope.deviceId;
+        Entry entry = cache.getIfPresent(deviceId);
+        if (entry != null) {
+            // 写入得来的记录不当作读到的记录，下层照常比较、照常写入，只带上解不开的项不让它们丢掉
+            requestScope.registeredBuckets = entry.written ? Maps.filterKeys(entry.data, RegistryCodec::isOpaque) : entry.data;
+            loaded(requestScope, toProctorResult(entry.data), resultHandler);
+            return;
+        }
+        delegate.get(requestScope, result -> {
+            if (result != null) {
+                cache.asMap().putIfAbsent(deviceId, new Entry(ImmutableMap.copyOf(toData(requestScope, result)), false));
+            } else if (requestScope.errorCode == ErrorCode.MONGODB_READ_ERROR) {
+                // 读取失败不记住，下次再读
+                resultHandler.handle(null);
+                return;
+            }
+            loaded(requestScope, result, resultHandler);
+        });
+    }
+
+    private static void loaded(RequestScope requestScope, ProctorResult result, Handler<ProctorResult> resultHandler) {
+        requestScope.registryLoaded = true;
+        requestScope.registryResult = result;
+        resultHandler.handle(result);
+    }
+
+    private static final class Entry {
+        final Map<String, String> data;
+        // 来自写入，而不是读取
+        final boolean written;
+
+        Entry(Map<String, String> data, boolean written) {
+            this.data = data;
+            this.written = written;
+        }
+    }
+}
@@ -10,7 +10,57 @@ public class Config {
 
     final static String HIIDO_SERVICE_URL = "http://szhiidocosevice.yy.com/service/read";
 
+    // 海度查询多久没有应答就算失败
+    final static long HIIDO_SERVICE_TIMEOUT_MS = 2000;
+
+    // 设备查询（海度加本地记录）多久没有结果就算失败，排队等它的请求不会一直等下去
+    final static long DEVICE_LOOKUP_TIMEOUT_MS = 5000;
+
     final static String FALLBACK_TEST_MATRIX = "/data/yy/vxlog/abtesting/test-matrix.json";
 
-    final static int SERVER_INSTANCE_NUMBER = 1;
+    // 每个 event loop 一个请求处理实例
+    final static int SERVER_INSTANCE_NUMBER = Runtime.getRuntime().availableProcessors();
+
+    // 分组计算的执行方式：WORKER 在独立的工作线程池里算，EVENT_LOOP 在 event loop 上同步算
+    final static String EVALUATION_MODE = "WORKER";
+
+    final static int EVALUATION_WORKER_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+    // 排队（含正在计算）的请求超过这个数就直接拒绝
+    final static int EVALUATION_MAX_PENDING = 1000;
+
+    // 设备是否新用户的查询缓存
+    final static int KNOWN_DEVICE_CACHE_SIZE = 1000000;
+
+    final static int BRAND_NEW_DEVICE_CACHE_SIZE = 100000;
+
+    final static int BRAND_NEW_DEVICE_CACHE_TTL_SECONDS = 60;
+
+    // 设备分组记录的批量写入
+    final static long REGISTRY_FLUSH_INTERVAL_MS = 1000;
+
+    final static int REGISTRY_FLUSH_BATCH_SIZE = 500;
+
+    // 等待写入的设备超过这个数，新设备的更新就丢弃
+    final static int REGISTRY_WRITE_BUFFER_SIZE = 100000;
+
+    // 设备分组记录用紧凑的二进制格式写入，读取时两种格式都支持
+    final static boolean REGISTRY_COMPACT_ENCODING = true;
+
+    // 设备分组记录存在哪里：mongo，或者 local（本机文件，可选在后台同步到 mongo）
+    final static String REGISTRY_BACKEND = "mongo";
+
+    final static boolean LOCAL_REGISTRY_REPLICATE_TO_MONGO = true;
+
+    final static String LOCAL_REGISTRY_PATH = "/data/yy/vxlog/abtesting/registry.dat";
+
+    // 槽位数，每个槽位 128 字节，一条记录占一个或连续几个槽位，文件是稀疏的
+    final static long LOCAL_REGISTRY_CAPACITY = 1L << 27;
+
+    final static long LOCAL_REGISTRY_FORCE_INTERVAL_MS = 10000;
+
+    // 设备分组记录的本地缓存
+    final static int REGISTRY_CACHE_SIZE = 500000;
+
+    final static int REGISTRY_CACHE_TTL_SECONDS = 300;
 }
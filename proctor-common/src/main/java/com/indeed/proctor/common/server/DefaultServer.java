@@ -11,7 +11,7 @@ import com.indeed.proctor.common.model.ConsumableTestDefinition;
 import com.indeed.proctor.common.model.TestBucket;
 import com.indeed.proctor.common.model.TestType;
 import io.vertx.core.AbstractVerticle;
-import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.*;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.shareddata.Counter;
@@ -23,109 +23,34 @@ import io.vertx.ext.web.handler.CorsHandler;
 import io.vertx.ext.web.handler.TimeoutHandler;
 import org.apache.log4j.Logger;
 
-import javax.annotation.Nullable;
-import java.io.BufferedWriter;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Paths;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.IntStream;
 
 public class DefaultServer extends AbstractVerticle {
     private static final Logger LOGGER = Logger.getLogger(DefaultServer.class);
 
-    private static final String FALLBACK_TEST_MATRIX = Config.FALLBACK_TEST_MATRIX;
-
-    private Proctor proctor;
-    private RemoteProctorLoader loader;
-    @Nullable
-    private String lastLoadErrorMessage = "load never attempted";
-    @Nullable
-    private AbstractProctorDiffReporter diffReporter = new AbstractProctorDiffReporter();
     private MongoClient mongoClient;
     private HttpClient httpClient;
     private DateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
     private Registry registry;
+    private EvaluationExecutor evaluationExecutor;
 
     // Called when verticle is deployed
     @Override
     public void start() {
         LOGGER.info("start - Verticle `" + DefaultServer.class.getSimpleName() + "` is deployed");
 
-        Handler<Void> then = v -> {
-            // 启动时从远程加载实验定义
-            startupLoad();
-
-            // 初始化成员
-            initMember();
-
-            // 设置API服务
-            setupHttpServer();
+        // 实验定义由 LoaderVerticle 加载，这里只从 ProctorSnapshot 读取；MetricsClient 也已由它初始化
+        // 初始化成员
+        initMember();
 
-            // 定时从远程加载实验定义
-            periodicLoad();
-
-            // 其它设置工作
-            setupOnce();
-        };
-
-        // 全局初始化，仅一次
-        vertx.sharedData().getCounter("global-once", res -> {
-            if (res.succeeded()) {
-                Counter counter = res.result();
-                counter.getAndIncrement(r -> {
-                    if (r.succeeded()) {
-                        long c = r.result();
-                        if (c == 0) {
-                            setupGlobalOnce(then);
-                        } else {
-                            then.handle(null);
-                        }
-                    } else {
-                        LOGGER.error("Something went wrong!", r.cause());
-                    }
-                });
-            } else {
-                LOGGER.error("Something went wrong!", res.cause());
-            }
-        });
-    }
+        // 设置API服务
+        setupHttpServer();
 
-    private void setupGlobalOnce(Handler<Void> then) {
-        context.executeBlocking(future -> {
-            MetricsClient.setup();
-            future.complete();
-        }, res -> {
-            then.handle(null);
-        });
-    }
-
-    private void startupLoad() {
-        context.executeBlocking(future -> {
-            // Call some blocking API that takes a significant amount of time to return
-            try {
-                loader = RemoteProctorLoader.createInstance();
-                Proctor proctor = loader.doLoad();
-                future.complete(proctor);
-            } catch (Exception e) {
-                future.fail(e);
-            }
-        }, res -> {
-            if (res.succeeded()) {
-                proctor = (Proctor) res.result();
-                Audit audit = proctor.getArtifact().getAudit();
-                LOGGER.info("Successfully loaded new test matrix definition: " +
-                        audit.getVersion() + " @ " + audit.getUpdatedDate() + " by " + audit.getUpdatedBy());
-            } else {
-                LOGGER.error("Something error when loading Proctor", res.cause());
-                fallback();
-            }
-        });
+        // 其它设置工作
+        setupOnce();
     }
 
     private void initMember() {
@@ -134,7 +59,7 @@ public class DefaultServer extends AbstractVerticle {
                 .put("connection_string", Config.MONGODB_CONNECTION_STRING + mongoOptions);
         mongoClient = MongoClient.createShared(vertx, mongoConfig);
         formatter.setTimeZone(Audit.DEFAULT_TIMEZONE);
-        registry = new MongoRegistry(vertx, context, mongoClient);
+        registry = new CachingRegistry(createRegistry());
         HttpClientOptions httpClientOptions = new HttpClientOptions()
                 .setConnectTimeout(5000)
                 .setIdleTimeout(2)
@@ -143,6 +68,22 @@ public class DefaultServer extends AbstractVerticle {
                 .setMaxWaitQueueSize(0)
                 .setPipelining(false);
         httpClient = vertx.createHttpClient(httpClientOptions);
+        evaluationExecutor = new EvaluationExecutor(vertx, EvaluationExecutor.Mode.valueOf(Config.EVALUATION_MODE),
+                Config.EVALUATION_WORKER_POOL_SIZE, Config.EVALUATION_MAX_PENDING);
+    }
+
+    private Registry createRegistry() {
+        switch (Config.REGISTRY_BACKEND) {
+            case "mongo":
+                return new MongoRegistry(vertx, context, mongoClient);
+            case "local":
+                Registry replica = Config.LOCAL_REGISTRY_REPLICATE_TO_MONGO
+                        ? new MongoRegistry(vertx, context, mongoClient)
+                        : null;
+                return new LocalRegistry(vertx, context, mongoClient, replica);
+            default:
+                throw new IllegalArgumentException("Unknown registry backend `" + Config.REGISTRY_BACKEND + "`");
+        }
     }
 
     private void setupHttpServer() {
@@ -153,45 +94,8 @@ public class DefaultServer extends AbstractVerticle {
         server.requestHandler(router::accept).listen(10200);
     }
 
-    private void periodicLoad() {
-        vertx.setPeriodic(10000, id -> {
-            context.executeBlocking(future -> {
-                final Proctor newProctor;
-                try {
-                    newProctor = loader.doLoad();
-                } catch (Throwable t) {
-                    lastLoadErrorMessage = t.getMessage();
-                    future.fail(t);
-                    return;
-                }
-                lastLoadErrorMessage = null;
-                if (newProctor == null) {
-                    // This should only happen if the versions of the matrix files are the same.
-                    future.complete();
-                    return;
-                }
-                if (proctor != null && newProctor != null) {
-                    diffReporter.reportProctorDiff(proctor.getArtifact(), newProctor.getArtifact());
-                }
-                future.complete(newProctor);
-            }, res -> {
-                if (res.succeeded()) {
-                    if (res.result() == null) {
-                        return;
-                    }
-                    proctor = (Proctor) res.result();
-                    Audit audit = proctor.getArtifact().getAudit();
-                    LOGGER.info("Successfully loaded new test matrix definition: " +
-                            audit.getVersion() + " @ " + audit.getUpdated() + " by " + audit.getUpdatedBy());
-                } else {
-                    LOGGER.error("Unable to reload proctor from " + loader.getSource() + ": " + res.cause().toString());
-                }
-            });
-        });
-    }
-
     private void setupOnce() {
-        vertx.sharedData().getCounter("dump-experiments", res -> {
+        vertx.sharedData().getCounter("registry-periodic", res -> {
             if (res.succeeded()) {
                 Counter counter = res.result();
                 counter.getAndIncrement(r -> {
@@ -199,7 +103,6 @@ public class DefaultServer extends AbstractVerticle {
                         long c = r.result();
                         if (c == 0) {
                             // 只做一次的setup放这里
-                            setupPeriodic();
                             registry.setupPeriodic();
                         }
                     } else {
@@ -212,52 +115,6 @@ public class DefaultServer extends AbstractVerticle {
         });
     }
 
-    /**
-     * 定时把实验定义转储到文件
-     */
-    private void setupPeriodic() {
-        LOGGER.info("setup periodic to dump experiments to disk");
-        vertx.setPeriodic(10000, id -> {
-            String dir = Paths.get(".").toAbsolutePath().normalize().toString();
-            String file = FALLBACK_TEST_MATRIX;
-            context.executeBlocking(future -> {
-                try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
-                        StandardCharsets.UTF_8))) {
-                    proctor.appendTestMatrix(bw);
-                    future.complete();
-                } catch (IOException e) {
-                    future.fail(e);
-                }
-            }, res -> {
-                if (res.failed()) {
-                    LOGGER.error("Unable to dump test matrix to file `" + dir + "/" + file + "`", res.cause());
-                }
-            });
-        });
-    }
-
-    private void fallback() {
-        String dir = Paths.get(".").toAbsolutePath().normalize().toString();
-        String file = FALLBACK_TEST_MATRIX;
-        context.executeBlocking(future -> {
-            final ProctorSpecification specification = new ProctorSpecification();
-            specification.setTests(null);
-            FileProctorLoader loader = new FileProctorLoader(specification, file);
-            try {
-                proctor = loader.doLoad();
-                future.complete();
-            } catch (Exception e) {
-                future.fail(e);
-            }
-        }, res -> {
-            if (res.succeeded()) {
-                LOGGER.warn("FALLBACK! load test matrix from file `" + dir + "/" + file + "`");
-            } else {
-                LOGGER.error("Unable to load test matrix from file `" + dir + "/" + file + "`", res.cause());
-            }
-        });
-    }
-
     private void setupGeneralRoute(Router router) {
         DefMetricsValue metric = MetricsClient.getDefMetricsValue("general");
 
@@ -338,6 +195,7 @@ public class DefaultServer extends AbstractVerticle {
             RequestScope requestScope = new RequestScope();
             requestScope.httpClient = httpClient;
             requestScope.mongoClient = mongoClient;
+            requestScope.registry = registry;
             requestScope.userId = userId;
             requestScope.deviceId = deviceId;
             requestScope.platform = platform;
@@ -348,46 +206,79 @@ public class DefaultServer extends AbstractVerticle {
             requestScope.phoneType = phoneType;
             requestScope.errorCode = ErrorCode.SUCCESS;
 
+            // 本次请求使用的实验定义快照
+            Proctor proctor = ProctorSnapshot.get();
+
             // 取inputContext
             InputContexts.get(requestScope, inputContext -> {
 
                 // 取上次状态
                 registry.get(requestScope, lastResult -> {
 
-                    // 哈希分配
-                    ProctorResult proctorResult = determineTestBucketMap(userId, deviceId, inputContext);
+                    // 分组计算按 Config.EVALUATION_MODE 放到工作线程池或 event loop 上执行
+                    boolean accepted = evaluationExecutor.tryExecute(() -> {
+                        Evaluation evaluation = new Evaluation();
 
-                    // 合并结果
-                    combine(proctorResult, lastResult, userId, deviceId);
+                        // 哈希分配
+                        evaluation.proctorResult = determineTestBucketMap(proctor, userId, deviceId, inputContext);
 
-                    // 转换结果
-                    JsonObject jsonResponse = toJson(proctorResult);
+                        // 合并结果
+                        combine(proctor, evaluation.proctorResult, lastResult, userId, deviceId);
 
-                    // 是否超时
-                    if (response.ended()) return;
+                        // 转换结果
+                        evaluation.body = ResponseFragments.of(proctor).toResponse(evaluation.proctorResult);
+                        return evaluation;
+                    }, res -> {
 
-                    response.endHandler(v -> {
+                        // 是否超时
+                        if (response.ended()) return;
 
-                        // 记录状态
-                        registry.update(requestScope, proctorResult);
+                        if (res.failed()) {
+                            routingContext.fail(res.cause());
+                            return;
+                        }
+                        Evaluation evaluation = res.result();
 
-                        // 保存日志
-                        //saveLog(userId, deviceId, jsonResponse);
-                    });
+                        response.endHandler(v -> {
 
-                    // 发送应答
-                    response.end(jsonResponse.encode());
+                            // 记录状态
+                            registry.update(requestScope, evaluation.proctorResult);
 
-                    // 记录总数
-                    metric.markCode(requestScope.errorCode);
+                            // 保存日志
+                            //saveLog(userId, deviceId, new JsonObject(evaluation.body));
+                        });
+
+                        // 发送应答
+                        response.end(evaluation.body);
+
+                        // 记录总数
+                        metric.markCode(requestScope.errorCode);
+                    });
+
+                    // 计算排队已满，直接拒绝
+                    if (!accepted && !response.ended()) {
+                        response.setStatusCode(ErrorCode.SERVER_OVERLOADED).end(new JsonObject()
+                                .put("code", ErrorCode.SERVER_OVERLOADED)
+                                .put("message", "Server overloaded")
+                                .encode());
+                        metric.markCode(ErrorCode.SERVER_OVERLOADED);
+                    }
                 });
             });
         });
 
+        router.get("/_evaluation").handler(routingContext -> {
+            routingContext.response().end(new JsonObject()
+                    .put("mode", evaluationExecutor.getMode().name())
+                    .put("pending", evaluationExecutor.getPending())
+                    .put("maxPending", evaluationExecutor.getMaxPending())
+                    .encode());
+        });
+
         router.get("/_source").handler(routingContext -> {
             HttpServerResponse response = routingContext.response();
             response.setChunked(true);
-            String source = loader.getInputURL().toString();
+            String source = Config.EXPERIMENT_SOURCE;
             httpClient.getAbs(source, reader -> {
                 Pump.pump(reader, response, 8192).start();
                 reader.endHandler(v -> response.end());
@@ -406,9 +297,7 @@ public class DefaultServer extends AbstractVerticle {
             if (sampleSizeStr == null) sampleSizeStr = "1000000";
             int sampleSize = Integer.parseInt(sampleSizeStr);
             int checkPoint = 100000;
-
-            // 设置前提条件
-            Map<String, Object> inputContext = Maps.newHashMap();
+            Proctor proctor = ProctorSnapshot.get();
 
             // 设置分布为二级树，统计进入每个实验的用户进入其它实验的情况
             Map<String, Map<String, AtomicInteger>> distribution = Maps.newHashMap();
@@ -429,32 +318,49 @@ public class DefaultServer extends AbstractVerticle {
                 distribution.put(distributionKey, others);
             });
 
-            // 开始模拟
-            IntStream.range(1, sampleSize+1).forEach(i -> {
-                // 生成随机用户
-                String userId = String.valueOf(i);
-                String deviceId = UUID.randomUUID().toString().replace("-", "");
-                inputContext.put("userId", userId);
-                inputContext.put("deviceId", deviceId);
+            // 开始模拟，每个检查点的样本作为一批，一次性分组
+            for (int batchStart = 1; batchStart <= sampleSize; batchStart += checkPoint) {
+                int batchEnd = Math.min(sampleSize, batchStart + checkPoint - 1);
+                List<Identifiers> identifiers = Lists.newArrayListWithCapacity(batchEnd - batchStart + 1);
+                List<Map<String, Object>> inputContexts = Lists.newArrayListWithCapacity(batchEnd - batchStart + 1);
+                String userId = null;
+                String deviceId = null;
+                for (int i = batchStart; i <= batchEnd; i++) {
+                    // 生成随机用户
+                    userId = String.valueOf(i);
+                    deviceId = UUID.randomUUID().toString().replace("-", "");
+                    Map<String, Object> inputContext = Maps.newHashMap();
+                    inputContext.put("userId", userId);
+                    inputContext.put("deviceId", deviceId);
+                    identifiers.add(Identifiers.of(
+                            TestType.USER_ID, userId,
+                            TestType.DEVICE_ID, deviceId));
+                    inputContexts.add(inputContext);
+                }
+                BatchProctorResult batchResult = proctor.determineTestGroups(identifiers, inputContexts);
 
                 // 记录每次模拟迭代的输出
-                ProctorResult proctorResult = determineTestBucketMap(userId, deviceId, inputContext);
-                Map<String, TestBucket> buckets = proctorResult.getBuckets();
-                List<String> all = Lists.newArrayList();
-                buckets.forEach((testId, bucket) -> {
-                    String distributionKey = testId + "/" + bucket.getName();
-                    all.add(distributionKey);
-                });
-                all.forEach(distributionKey -> {
-                    Map<String, AtomicInteger> subDist = distribution.get(distributionKey);
-                    subDist.get("total").incrementAndGet();
-                    all.stream().filter(k -> !k.equals(distributionKey))
-                            .forEach(k -> {
-                                subDist.get(k).incrementAndGet();
-                            });
-                });
+                List<String> testNames = batchResult.getTestNames();
+                for (int row = 0; row < batchResult.size(); row++) {
+                    List<String> all = Lists.newArrayList();
+                    for (int t = 0; t < testNames.size(); t++) {
+                        TestBucket bucket = batchResult.getBucket(row, t);
+                        if (bucket != null) {
+                            all.add(testNames.get(t) + "/" + bucket.getName());
+                        }
+                    }
+                    all.forEach(distributionKey -> {
+                        Map<String, AtomicInteger> subDist = distribution.get(distributionKey);
+                        subDist.get("total").incrementAndGet();
+                        all.stream().filter(k -> !k.equals(distributionKey))
+                                .forEach(k -> {
+                                    subDist.get(k).incrementAndGet();
+                                });
+                    });
+                }
 
                 // 检查点打印输出
+                int i = batchEnd;
                 if (i % checkPoint == 0) {
                     response.write("Sample size is " + i + ": the last userId is " + userId + ", deviceId is " + deviceId + "\n");
                     distribution.keySet().stream().sorted().forEach(key -> {
@@ -471,7 +377,7 @@ public class DefaultServer extends AbstractVerticle {
                     });
                     response.write("\n");
                 }
-            });
+            }
 
             response.write("Done simulation\n");
             response.end();
@@ -480,34 +386,39 @@ public class DefaultServer extends AbstractVerticle {
 
     /**
      * 把 lastResult 合并到 proctorResult
+     * @param proctor 本次请求使用的实验定义快照
      * @param proctorResult 当前实验结果，合并之后，会被改变
      * @param lastResult 上次实验结果，只读
      */
-    private void combine(ProctorResult proctorResult, ProctorResult lastResult, String userId, String deviceId) {
+    private void combine(Proctor proctor, ProctorResult proctorResult, ProctorResult lastResult, String userId, String deviceId) {
         if (lastResult == null)
             return;
 
-        lastResult.getBuckets().keySet().stream()
-                // 挑出上次结果里，已暂停的实验
-                .filter(testId -> {
-                    ConsumableTestDefinition testDefinition = proctor.getTestDefinition(testId);
-                    if (testDefinition != null) {
-                        return testDefinition.getState().equals(Test.STATE_PAUSED);
-                    } else {
-                        return false;
-                    }
-                })
-                // 给当前实验结果（必须不包含暂停实验），增加已暂停的实验
-                .forEach(testId -> {
-                    TestBucket lastBucket = lastResult.getBuckets().get(testId);
-                    TestBucket currBucket = proctorResult.getBuckets().put(testId, lastBucket);
-                    if (currBucket != null) {
-                        // 如果设备在白名单里，会进入此分支！
-                        LOGGER.warn("A paused experiment `" + testId + "` is present: userId=" + userId +
-                                " deviceId=" + deviceId + " currBucket=" + currBucket +
-                                " lastBucket=" + lastBucket);
-                    }
-                });
+        // ProctorResult 的 buckets 不能原地修改，合并到新的 map 里再整体替换
+        Map<String, TestBucket> combined = null;
+        for (Map.Entry<String, TestBucket> entry : lastResult.getBuckets().entrySet()) {
+            String testId = entry.getKey();
+            // 挑出上次结果里，已暂停的实验
+            ConsumableTestDefinition testDefinition = proctor.getTestDefinition(testId);
+            if (testDefinition == null || !testDefinition.getState().equals(Test.STATE_PAUSED)) {
+                continue;
+            }
+            // 给当前实验结果（必须不包含暂停实验），增加已暂停的实验
+            if (combined == null) {
+                combined = Maps.newHashMap(proctorResult.getBuckets());
+            }
+            TestBucket lastBucket = entry.getValue();
+            TestBucket currBucket = combined.put(testId, lastBucket);
+            if (currBucket != null) {
+                // 如果设备在白名单里，会进入此分支！
+                LOGGER.warn("A paused experiment `" + testId + "` is present: userId=" + userId +
+                        " deviceId=" + deviceId + " currBucket=" + currBucket +
+                        " lastBucket=" + lastBucket);
+            }
+        }
+        if (combined != null) {
+            proctorResult.setBuckets(combined);
+        }
     }
 
     private void saveLog(String userId, String deviceId, JsonObject json) {
@@ -525,29 +436,14 @@ public class DefaultServer extends AbstractVerticle {
     }
 
     /**
-     * 利用metrics需要记录每个实验每个分组的请求数
+     * 一次分组计算的结果
      */
-    private JsonObject toJson(ProctorResult proctorResult) {
-        Map<String, String> data = Maps.newHashMap();
-        Map<String, TestBucket> buckets = proctorResult.getBuckets();
-        for (Map.Entry<String, TestBucket> entry : buckets.entrySet()) {
-            String testId = entry.getKey();
-            String variationKey = entry.getValue().getName();
-            if (variationKey.equals("inactive"))
-                continue;
-            data.put(testId, variationKey);
-
-            String key = testId + "/" + variationKey;
-            MetricsClient.getDefMetricsValue(key).markCode(ErrorCode.SUCCESS2);
-        }
-        JsonObject json = new JsonObject();
-        json.put("code", ErrorCode.SUCCESS2);  // 成功
-        json.put("message", "Success");
-        json.put("data", data);
-        return json;
+    private static class Evaluation {
+        ProctorResult proctorResult;
+        Buffer body;
     }
 
-    private ProctorResult determineTestBucketMap(String userId, String deviceId, Map<String, Object> inputContext) {
+    private ProctorResult determineTestBucketMap(Proctor proctor, String userId, String deviceId, Map<String, Object> inputContext) {
         Identifiers identifiers = Identifiers.of(
                 TestType.USER_ID, userId,
                 TestType.DEVICE_ID, deviceId);
@@ -0,0 +1,101 @@
+package com.indeed.proctor.common.server;
+
+import com.duowan.sysop.hawk.metrics.client2.type.DefMetricsValue;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 执行实验分组计算。
+ * WORKER 模式下放到有界的工作线程池里算，不占用 event loop，Hiido 和 Mongo 的回调不会被 CPU 密集的规则计算拖慢；
+ * 排队（含正在计算）的请求超过上限时直接拒绝，由调用方返回 {@link ErrorCode#SERVER_OVERLOADED}。
+ * EVENT_LOOP 模式保持原来的行为，在 event loop 上同步计算。
+ */
+public class EvaluationExecutor {
+    private static final Logger LOGGER = Logger.getLogger(EvaluationExecutor.class);
+
+    enum Mode {
+        EVENT_LOOP,
+        WORKER
+    }
+
+    private static final String WORKER_POOL_NAME = "proctor-evaluation";
+
+    // 所有 DefaultServer 实例共享同一个工作线程池，所以排队数也是全局的
+    private static final AtomicInteger PENDING = new AtomicInteger();
+
+    @Nonnull
+    private final Mode mode;
+    private final int maxPending;
+    @Nullable
+    private final WorkerExecutor workerExecutor;
+    // 时延是排队等待的时间，拒绝的请求记为 SERVER_OVERLOADED
+    private final DefMetricsValue metric;
+
+    EvaluationExecutor(@Nonnull Vertx vertx, @Nonnull Mode mode, int poolSize, int maxPending) {
+        this.mode = mode;
+        this.maxPending = maxPending;
+        this.workerExecutor = mode == Mode.WORKER ? vertx.createSharedWorkerExecutor(WORKER_POOL_NAME, poolSize) : null;
+        this.metric = MetricsClient.getDefMetricsValue("evaluation-queue");
+        LOGGER.info("evaluate in " + mode + " mode, poolSize=" + poolSize + ", maxPending=" + maxPending);
+    }
+
+    /**
+     * 执行 task，结果总是在调用者的 event loop 上交给 resultHandler
+     * @return false 表示队列已满，task 没有执行，resultHandler 也不会被调用
+     */
+    <T> boolean tryExecute(@Nonnull Supplier<T> task, @Nonnull Handler<AsyncResult<T>> resultHandler) {
+        if (workerExecutor == null) {
+            final T result;
+            try {
+                result = task.get();
+            } catch (RuntimeException e) {
+                resultHandler.handle(Future.failedFuture(e));
+                return true;
+            }
+            resultHandler.handle(Future.succeededFuture(result));
+            return true;
+        }
+
+        if (PENDING.incrementAndGet() > maxPending) {
+            PENDING.decrementAndGet();
+            metric.markCode(ErrorCode.SERVER_OVERLOADED);
+            return false;
+        }
+        long enqueued = System.currentTimeMillis();
+        // 各请求之间互不依赖，不需要保序
+        workerExecutor.<T>executeBlocking(future -> {
+            metric.markDurationAndCode(System.currentTimeMillis() - enqueued, ErrorCode.SUCCESS);
+            try {
+                future.complete(task.get());
+            } finally {
+                PENDING.decrementAndGet();
+            }
+        }, false, resultHandler);
+        return true;
+    }
+
+    @Nonnull
+    Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return 当前排队和正在计算的请求数
+     */
+    int getPending() {
+        return PENDING.get();
+    }
+
+    int getMaxPending() {
+        return maxPending;
+    }
+}
@@ -1,6 +1,12 @@
 package com.indeed.proctor.common.server;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.indeed.proctor.common.ContextSchema;
+import io.vertx.core.Context;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.http.HttpClient;
@@ -10,21 +16,52 @@ import io.vertx.core.json.JsonObject;
 import io.vertx.ext.mongo.MongoClient;
 import org.apache.log4j.Logger;
 
+import javax.annotation.Nullable;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class InputContexts {
     private static final Logger LOGGER = Logger.getLogger(InputContexts.class);
 
     public static final String isBrandNewUser = "isBrandNewUser";
 
+    // 规则可以用的上下文变量及类型，规则编译时给每个变量分配下标
+    public static final ContextSchema CONTEXT_SCHEMA = ContextSchema.of(ImmutableMap.<String, String>builder()
+            .put("userId", "String")
+            .put("deviceId", "String")
+            .put("platform", "String")
+            .put("systemVersion", "String")
+            .put("resolutionWidth", "Integer")
+            .put("resolutionHeight", "Integer")
+            .put("appVersion", "String")
+            .put("phoneType", "String")
+            .put(isBrandNewUser, "Boolean")
+            .build());
+
+    // 海度或本地有记录的设备不会再变成新用户，长期缓存，只受容量限制
+    private static final Cache<String, DeviceStatus> knownDevices = CacheBuilder.newBuilder()
+            .maximumSize(Config.KNOWN_DEVICE_CACHE_SIZE)
+            .expireAfterAccess(1, TimeUnit.DAYS)
+            .build();
+
+    // 新设备在第一次分组之后就会写入本地记录（见 registered），其它服务器写入的记录要等缓存过期才能看到，所以只缓存很短的时间
+    private static final Cache<String, DeviceStatus> brandNewDevices = CacheBuilder.newBuilder()
+            .maximumSize(Config.BRAND_NEW_DEVICE_CACHE_SIZE)
+            .expireAfterWrite(Config.BRAND_NEW_DEVICE_CACHE_TTL_SECONDS, TimeUnit.SECONDS)
+            .build();
+
+    // 同一个设备正在进行的查询，后来的请求只排队等结果，不重复查询
+    private static final ConcurrentMap<String, List<Waiter>> inFlight = Maps.newConcurrentMap();
+
     public static void get(RequestScope requestScope,
                            Handler<Map<String, Object>> resultHandler) {
         String userId = requestScope.userId;
         String deviceId = requestScope.deviceId;
-        HttpClient httpClient = requestScope.httpClient;
-        MongoClient mongoClient = requestScope.mongoClient;
 
-        Map<String, Object> inputContext = Maps.newHashMap();
+        Map<String, Object> inputContext = CONTEXT_SCHEMA.newValues();
         inputContext.put("userId", userId);
         inputContext.put("deviceId", deviceId);
         inputContext.put("platform", requestScope.platform);
@@ -33,7 +70,92 @@ public class InputContexts {
         inputContext.put("resolutionHeight", requestScope.resolutionHeight);
         inputContext.put("appVersion", requestScope.appVersion);
         inputContext.put("phoneType", requestScope.phoneType);
-        inputContext.put(isBrandNewUser, false);
+
+        getDeviceStatus(requestScope, status -> {
+            inputContext.put(isBrandNewUser, status.brandNew);
+            requestScope.errorCode = status.errorCode;
+            resultHandler.handle(inputContext);
+        });
+    }
+
+    /**
+     * 先查缓存，没有再查海度和本地记录。resultHandler 总在调用者的 context 上执行
+     */
+    private static void getDeviceStatus(RequestScope requestScope, Handler<DeviceStatus> resultHandler) {
+        String deviceId = requestScope.deviceId;
+        DeviceStatus cached = knownDevices.getIfPresent(deviceId);
+        if (cached == null) {
+            cached = brandNewDevices.getIfPresent(deviceId);
+        }
+        if (cached != null) {
+            resultHandler.handle(cached);
+            return;
+        }
+
+        Waiter waiter = new Waiter(Vertx.currentContext(), resultHandler);
+        boolean[] first = {false};
+        inFlight.compute(deviceId, (k, waiters) -> {
+            if (waiters == null) {
+                waiters = Lists.newArrayListWithCapacity(1);
+                first[0] = true;
+            }
+            waiters.add(waiter);
+            return waiters;
+        });
+        if (!first[0]) {
+            return;
+        }
+
+        // 查询只能结束一次：正常结果、异常和超时谁先到算谁的
+        AtomicBoolean done = new AtomicBoolean();
+        long[] timerId = {-1};
+        Handler<DeviceStatus> complete = status -> {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            if (timerId[0] >= 0) {
+                waiter.context.owner().cancelTimer(timerId[0]);
+            }
+            if (status.cacheable) {
+                (status.brandNew ? brandNewDevices : knownDevices).put(deviceId, status);
+            }
+            Context current = Vertx.currentContext();
+            for (Waiter w : inFlight.remove(deviceId)) {
+                if (w.context == null || w.context == current) {
+                    w.handler.handle(status);
+                } else {
+                    w.context.runOnContext(v -> w.handler.handle(status));
+                }
+            }
+        };
+        if (waiter.context != null) {
+            timerId[0] = waiter.context.owner().setTimer(Config.DEVICE_LOOKUP_TIMEOUT_MS, id -> {
+                LOGGER.error("lookup of device `" + deviceId + "` timed out");
+                complete.handle(DeviceStatus.failed(ErrorCode.HIIDO_SERVICE_UNAVAILABLE));
+            });
+        }
+        try {
+            lookup(requestScope, complete);
+        } catch (RuntimeException e) {
+            LOGGER.error("lookup of device `" + deviceId + "` failed", e);
+            complete.handle(DeviceStatus.failed(ErrorCode.HIIDO_SERVICE_UNAVAILABLE));
+        }
+    }
+
+    /**
+     * 设备写入本地记录之后就不再是新用户，其它请求不必等到缓存过期
+     */
+    static void registered(String deviceId) {
+        if (brandNewDevices.getIfPresent(deviceId) != null) {
+            knownDevices.put(deviceId, DeviceStatus.KNOWN);
+            brandNewDevices.invalidate(deviceId);
+        }
+    }
+
+    private static void lookup(RequestScope requestScope, Handler<DeviceStatus> resultHandler) {
+        String deviceId = requestScope.deviceId;
+        HttpClient httpClient = requestScope.httpClient;
+        Registry registry = requestScope.registry;
 
         // 去海度查询设备最后登录的时间
         String hiidoServiceURL = Config.HIIDO_SERVICE_URL;
@@ -42,43 +164,49 @@ public class InputContexts {
                     int staticCode = response.statusCode();
                     if (staticCode != 200) {
                         LOGGER.error("post to `" + hiidoServiceURL + "` got " + staticCode);
-                        requestScope.errorCode = ErrorCode.HIIDO_SERVICE_RESPONSE_CODE_IS_NOT_200;
-                        resultHandler.handle(inputContext);
+                        resultHandler.handle(DeviceStatus.failed(ErrorCode.HIIDO_SERVICE_RESPONSE_CODE_IS_NOT_200));
                         return;
                     }
                     response.bodyHandler(body -> {
-                        JsonObject result = new JsonObject(body);
-                        JsonArray data = result.getJsonArray("data", new JsonArray());
-                        if (data.size() > 0 && data.getJsonObject(0).containsKey("dt")) {
-                            LOGGER.debug("device `" + deviceId + "` -> dt `" + data.getJsonObject(0).getString("dt") + "`");
-                            requestScope.errorCode = ErrorCode.SUCCESS;
-                            resultHandler.handle(inputContext);
+                        try {
+                            JsonArray data = new JsonObject(body).getJsonArray("data", new JsonArray());
+                            if (data.size() > 0 && data.getJsonObject(0).containsKey("dt")) {
+                                LOGGER.debug("device `" + deviceId + "` -> dt `" + data.getJsonObject(0).getString("dt") + "`");
+                                resultHandler.handle(DeviceStatus.KNOWN);
+                                return;
+                            }
+                        } catch (RuntimeException e) {
+                            LOGGER.error("parse response from `" + hiidoServiceURL + "` got " + e.toString());
+                            resultHandler.handle(DeviceStatus.failed(ErrorCode.HIIDO_SERVICE_RESPONSE_PARSE_ERROR));
                             return;
                         }
                         LOGGER.debug("device `" + deviceId + "` -> not present in hiido, query locally...");
-                        JsonObject query = new JsonObject().put("_id", deviceId);
-                        JsonObject fields = new JsonObject().put("data", 1);
-                        mongoClient.findOne("registry", query, fields,
-                                res -> {
-                                    if (res.succeeded() && res.result() != null) {
-                                        inputContext.put(isBrandNewUser, false);
-                                    } else {
-                                        inputContext.put(isBrandNewUser, true);
-                                    }
-                                    requestScope.errorCode = ErrorCode.SUCCESS;
-                                    resultHandler.handle(inputContext);
-                                });
+                        // 和取上次状态共用一次读取
+                        try {
+                            registry.get(requestScope, lastResult -> {
+                                if (lastResult != null) {
+                                    resultHandler.handle(DeviceStatus.KNOWN);
+                                } else if (requestScope.errorCode != ErrorCode.MONGODB_READ_ERROR) {
+                                    resultHandler.handle(DeviceStatus.BRAND_NEW);
+                                } else {
+                                    // 和以前一样按新用户处理，但不缓存
+                                    resultHandler.handle(DeviceStatus.BRAND_NEW_UNCONFIRMED);
+                                }
+                            });
+                        } catch (RuntimeException e) {
+                            LOGGER.error("query registry of device `" + deviceId + "` failed", e);
+                            resultHandler.handle(DeviceStatus.BRAND_NEW_UNCONFIRMED);
+                        }
                     }).exceptionHandler(t -> {
                         LOGGER.error("parse response from `" + hiidoServiceURL + "` got " + t.toString());
-                        requestScope.errorCode = ErrorCode.HIIDO_SERVICE_RESPONSE_PARSE_ERROR;
-                        resultHandler.handle(inputContext);
+                        resultHandler.handle(DeviceStatus.failed(ErrorCode.HIIDO_SERVICE_RESPONSE_PARSE_ERROR));
                     });
                 })
                 .putHeader("content-type", "text/plain")
+                .setTimeout(Config.HIIDO_SERVICE_TIMEOUT_MS)
                 .exceptionHandler(t -> {
                     LOGGER.error("post to `" + hiidoServiceURL + "` got " + t.toString());
-                    requestScope.errorCode = ErrorCode.HIIDO_SERVICE_UNAVAILABLE;
-                    resultHandler.handle(inputContext);
+                    resultHandler.handle(DeviceStatus.failed(ErrorCode.HIIDO_SERVICE_UNAVAILABLE));
                 })
                 .end(new JsonObject()
                         .put("reqnum", 0)
@@ -93,6 +221,43 @@ public class InputContexts {
                         .encode());
     }
 
+    /**
+     * 一次设备查询的结果，只有查询成功的结果才缓存
+     */
+    private static final class DeviceStatus {
+        static final DeviceStatus KNOWN = new DeviceStatus(false, ErrorCode.SUCCESS, true);
+        static final DeviceStatus BRAND_NEW = new DeviceStatus(true, ErrorCode.SUCCESS, true);
+        static final DeviceStatus BRAND_NEW_UNCONFIRMED = new DeviceStatus(true, ErrorCode.SUCCESS, false);
+
+        final boolean brandNew;
+        final int errorCode;
+        final boolean cacheable;
+
+        private DeviceStatus(boolean brandNew, int errorCode, boolean cacheable) {
+            this.brandNew = brandNew;
+            this.errorCode = errorCode;
+            this.cacheable = cacheable;
+        }
+
+        static DeviceStatus failed(int errorCode) {
+            return new DeviceStatus(false, errorCode, false);
+        }
+    }
+
+    /**
+     * 等待查询结果的请求，结果要回到它自己的 event loop 上处理
+     */
+    private static final class Waiter {
+        @Nullable
+        final Context context;
+        final Handler<DeviceStatus> handler;
+
+        Waiter(@Nullable Context context, Handler<DeviceStatus> handler) {
+            this.context = context;
+            this.handler = handler;
+        }
+    }
+
     public static void main(final String[] args) {
         Vertx vertx = Vertx.vertx();
         HttpClientOptions httpClientOptions = new HttpClientOptions()
@@ -101,6 +266,7 @@ public class InputContexts {
         HttpClient httpClient = vertx.createHttpClient(httpClientOptions);
         JsonObject mongoConfig = new JsonObject().put("connection_string", "mongodb://172.27.142.6:27017/abtest");
         MongoClient mongoClient = MongoClient.createShared(vertx, mongoConfig);
+        MetricsClient.setup();
         Handler<Map<String, Object>> h = res -> {
             LOGGER.info("device `" + res.get("deviceId") + "` -> " + res.get(isBrandNewUser));
         };
@@ -108,6 +274,7 @@ public class InputContexts {
         RequestScope requestScope = new RequestScope();
         requestScope.httpClient = httpClient;
         requestScope.mongoClient = mongoClient;
+        requestScope.registry = new MongoRegistry(vertx, vertx.getOrCreateContext(), mongoClient);
 
         requestScope.deviceId = "";
         get(requestScope, h);
@@ -0,0 +1,280 @@
+package com.indeed.proctor.common.server;
+
+import com.indeed.proctor.common.AbstractProctorDiffReporter;
+import com.indeed.proctor.common.FileProctorLoader;
+import com.indeed.proctor.common.Proctor;
+import com.indeed.proctor.common.ProctorSpecification;
+import com.indeed.proctor.common.RemoteProctorLoader;
+import com.indeed.proctor.common.model.Audit;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * 只部署一个实例：启动时及定时从远程加载实验定义，发布到 {@link ProctorSnapshot}，并定时转储到文件。
+ * 这样无论部署多少个 {@link DefaultServer}，远程加载和流量分配都只做一次。
+ */
+public class LoaderVerticle extends AbstractVerticle {
+    private static final Logger LOGGER = Logger.getLogger(LoaderVerticle.class);
+
+    private static final String FALLBACK_TEST_MATRIX = Config.FALLBACK_TEST_MATRIX;
+
+    // 启动时创建失败则为 null，此时不定时加载
+    @Nullable
+    private RemoteProctorLoader loader;
+    private HttpClient httpClient;
+    // 只在 event loop 上读写
+    private boolean loading = false;
+    // 已经转储到文件的版本，只在 event loop 上读写
+    @Nullable
+    private String dumpedVersion = null;
+    private boolean dumping = false;
+    @Nullable
+    private String lastLoadErrorMessage = "load never attempted";
+    @Nullable
+    private AbstractProctorDiffReporter diffReporter = new AbstractProctorDiffReporter();
+
+    // Called when verticle is deployed
+    @Override
+    public void start(Future<Void> startFuture) {
+        LOGGER.info("start - Verticle `" + LoaderVerticle.class.getSimpleName() + "` is deployed");
+
+        // 全局初始化，以及启动时从远程加载实验定义。都完成（或回退到文件）之后才算部署完成，请求处理实例在此之后部署
+        setupGlobalOnce(v -> startupLoad(v2 -> {
+            // 定时从远程加载实验定义
+            periodicLoad();
+
+            // 定时把实验定义转储到文件
+            setupPeriodic();
+
+            startFuture.complete();
+        }));
+    }
+
+    @Override
+    public void stop() {
+        if (httpClient != null) {
+            httpClient.close();
+        }
+    }
+
+    private void setupGlobalOnce(Handler<Void> then) {
+        context.executeBlocking(future -> {
+            MetricsClient.setup();
+            future.complete();
+        }, res -> {
+            then.handle(null);
+        });
+    }
+
+    private void startupLoad(Handler<Void> then) {
+        context.executeBlocking(future -> {
+            // Call some blocking API that takes a significant amount of time to return
+            try {
+                loader = RemoteProctorLoader.createInstance();
+                Proctor proctor = loader.doLoad();
+                future.complete(proctor);
+            } catch (Exception e) {
+                future.fail(e);
+            }
+        }, res -> {
+            if (res.succeeded()) {
+                Proctor proctor = (Proctor) res.result();
+                ProctorSnapshot.publish(proctor);
+                Audit audit = proctor.getArtifact().getAudit();
+                LOGGER.info("Successfully loaded new test matrix definition: " +
+                        audit.getVersion() + " @ " + audit.getUpdatedDate() + " by " + audit.getUpdatedBy());
+                then.handle(null);
+            } else {
+                LOGGER.error("Something error when loading Proctor", res.cause());
+                fallback(then);
+            }
+        });
+    }
+
+    /**
+     * 在 event loop 上异步发条件请求，实验定义没变时服务器返回 304，不占用工作线程；
+     * 有新内容时才到工作线程上解析和构造 Proctor
+     */
+    private void periodicLoad() {
+        if (loader == null) {
+            // 启动时连加载器都没建起来，只能用文件里的实验定义
+            LOGGER.error("No remote loader, periodic loading is disabled");
+            return;
+        }
+        httpClient = vertx.createHttpClient(new HttpClientOptions()
+                .setConnectTimeout(5000)
+                .setSsl(loader.getSource().startsWith("https:")));
+        vertx.setPeriodic(10000, id -> {
+            if (loading) {
+                // 上一次还没加载完
+                return;
+            }
+            loading = true;
+            HttpClientRequest request = httpClient.getAbs(loader.getSource(), response -> {
+                if (response.statusCode() == 304) {
+                    lastLoadErrorMessage = null;
+                    loading = false;
+                    return;
+                }
+                if (response.statusCode() != 200) {
+                    loadFailed(new IOException("HTTP " + response.statusCode()));
+                    return;
+                }
+                String eTag = response.getHeader("ETag");
+                String lastModified = response.getHeader("Last-Modified");
+                response.exceptionHandler(this::loadFailed);
+                response.bodyHandler(body -> reload(body.getBytes(), eTag, lastModified));
+            });
+            if (loader.getETag() != null) {
+                request.putHeader("If-None-Match", loader.getETag());
+            }
+            if (loader.getLastModified() != null) {
+                request.putHeader("If-Modified-Since", loader.getLastModified());
+            }
+            request.setTimeout(30000)
+                    .exceptionHandler(this::loadFailed)
+                    .end();
+        });
+    }
+
+    private void reload(byte[] content, String eTag, String lastModified) {
+        context.executeBlocking(future -> {
+            final Proctor newProctor;
+            try {
+                newProctor = loader.doLoad(content, eTag, lastModified);
+            } catch (Throwable t) {
+                future.fail(t);
+                return;
+            }
+            if (newProctor == null) {
+                // This should only happen if the versions of the matrix files are the same.
+                future.complete();
+                return;
+            }
+            diffReporter.reportProctorDiff(ProctorSnapshot.get().getArtifact(), newProctor.getArtifact());
+            future.complete(newProctor);
+        }, res -> {
+            if (res.failed()) {
+                loadFailed(res.cause());
+                return;
+            }
+            lastLoadErrorMessage = null;
+            loading = false;
+            if (res.result() == null) {
+                return;
+            }
+            Proctor proctor = (Proctor) res.result();
+            ProctorSnapshot.publish(proctor);
+            Audit audit = proctor.getArtifact().getAudit();
+            LOGGER.info("Successfully loaded new test matrix definition: " +
+                    audit.getVersion() + " @ " + audit.getUpdated() + " by " + audit.getUpdatedBy());
+        });
+    }
+
+    private void loadFailed(Throwable t) {
+        if (!loading) {
+            // 同一次加载只报一次错
+            return;
+        }
+        lastLoadErrorMessage = t.getMessage();
+        loading = false;
+        LOGGER.error("Unable to reload proctor from " + loader.getSource() + ": " + t.toString());
+    }
+
+    /**
+     * 定时把实验定义转储到文件。只在版本变化时才写，先写临时文件再原子地改名，写到一半崩溃也不会留下残缺的文件
+     */
+    private void setupPeriodic() {
+        LOGGER.info("setup periodic to dump experiments to disk");
+        Path target = Paths.get(FALLBACK_TEST_MATRIX).toAbsolutePath().normalize();
+        vertx.setPeriodic(10000, id -> {
+            Proctor proctor = ProctorSnapshot.get();
+            if (dumping || proctor == Proctor.EMPTY) {
+                // 什么都没加载到时不能覆盖原来的文件
+                return;
+            }
+            String version = proctor.getArtifact().getAudit().getVersion();
+            if (version != null && version.equals(dumpedVersion)) {
+                return;
+            }
+            dumping = true;
+            context.executeBlocking(future -> {
+                try {
+                    dump(proctor, target);
+                    future.complete();
+                } catch (IOException e) {
+                    future.fail(e);
+                }
+            }, res -> {
+                dumping = false;
+                if (res.succeeded()) {
+                    dumpedVersion = version;
+                    LOGGER.info("Dumped test matrix " + version + " to file `" + target + "`");
+                } else {
+                    LOGGER.error("Unable to dump test matrix to file `" + target + "`", res.cause());
+                }
+            });
+        });
+    }
+
+    private static void dump(Proctor proctor, Path target) throws IOException {
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(temp.toFile());
+                 BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+                proctor.appendTestMatrix(bw);
+                bw.flush();
+                out.getFD().sync();
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void fallback(Handler<Void> then) {
+        String dir = Paths.get(".").toAbsolutePath().normalize().toString();
+        String file = FALLBACK_TEST_MATRIX;
+        context.executeBlocking(future -> {
+            final ProctorSpecification specification = new ProctorSpecification();
+            specification.setTests(null);
+            FileProctorLoader loader = new FileProctorLoader(specification, file);
+            try {
+                ProctorSnapshot.publish(loader.doLoad());
+                future.complete();
+            } catch (Exception e) {
+                future.fail(e);
+            }
+        }, res -> {
+            if (res.succeeded()) {
+                // 文件里就是这个版本，不用再写回去
+                dumpedVersion = ProctorSnapshot.get().getArtifact().getAudit().getVersion();
+                LOGGER.warn("FALLBACK! load test matrix from file `" + dir + "/" + file + "`");
+            } else {
+                LOGGER.error("Unable to load test matrix from file `" + dir + "/" + file + "`", res.cause());
+            }
+            then.handle(null);
+        });
+    }
+}
@@ -0,0 +1,174 @@
+package com.indeed.proctor.common.server;
+
+import com.duowan.sysop.hawk.metrics.client2.type.DefMetricsValue;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.indeed.proctor.common.ProctorResult;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.ext.mongo.MongoClient;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+
+/**
+ * 设备的分组记录存在本机的 {@link MappedRegistryStore} 里，读写都不经过网络。
+ * 记录用 {@link RegistryCodec} 编码，编码失败（实验定义还没加载、有不认识的实验）时存 JSON；放不下的记录不存本地。
+ * 可以再挂一个 replica（一般是 {@link MongoRegistry}）：更新同时交给它在后台写入，本地没有的记录从它读取并存到本地。
+ */
+public class LocalRegistry extends Registry {
+
+    private static final Logger LOGGER = Logger.getLogger(LocalRegistry.class);
+
+    private static final TypeReference<Map<String, String>> DATA_TYPE = new TypeReference<Map<String, String>>() {
+    };
+
+    // 所有实例共享同一个文件
+    private static MappedRegistryStore store;
+
+    @Nullable
+    private final Registry replica;
+
+    private final DefMetricsValue unchangedMetric;
+    private final DefMetricsValue droppedMetric;
+
+    public LocalRegistry(@Nonnull Vertx vertx, @Nonnull Context context, @Nonnull MongoClient mongoClient,
+                         @Nullable Registry replica) {
+        super(vertx, context, mongoClient);
+        this.replica = replica;
+        unchangedMetric = MetricsClient.getDefMetricsValue("registry/unchanged");
+        droppedMetric = MetricsClient.getDefMetricsValue("registry/dropped");
+        openStore();
+    }
+
+    private static synchronized void openStore() {
+        if (store != null) {
+            return;
+        }
+        File path = new File(Config.LOCAL_REGISTRY_PATH);
+        try {
+            store = new MappedRegistryStore(path, Config.LOCAL_REGISTRY_CAPACITY);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open local registry `" + path.getAbsolutePath() + "`", e);
+        }
+        LOGGER.info("open local registry `" + path.getAbsolutePath() + "` with capacity " + Config.LOCAL_REGISTRY_CAPACITY);
+    }
+
+    @Override
+    public void setupPeriodic() {
+        if (replica != null) {
+            replica.setupPeriodic();
+        }
+        LOGGER.info("setup periodic to force local registry to disk every " + Config.LOCAL_REGISTRY_FORCE_INTERVAL_MS + "ms");
+        vertx.setPeriodic(Config.LOCAL_REGISTRY_FORCE_INTERVAL_MS, id -> {
+            context.executeBlocking(future -> {
+                store.force();
+                future.complete();
+            }, res -> {
+                if (res.failed()) {
+                    LOGGER.error("Unable to force local registry to disk", res.cause());
+                }
+            });
+        });
+    }
+
+    @Override
+    public void update(@Nonnull RequestScope requestScope, @Nonnull ProctorResult proctorResult,
+                       @Nonnull Handler<Map<String, String>> storedHandler) {
+        if (requestScope.registryUnreadable) {
+            LOGGER.warn("Registry record of device `" + requestScope.deviceId + "` is unreadable, not overwriting it");
+            droppedMetric.markCode(ErrorCode.LOCAL_REGISTRY_WRITE_DROPPED);
+            return;
+        }
+        Map<String, String> data = toData(requestScope, proctorResult);
+        if (data.equals(requestScope.registeredBuckets)) {
+            unchangedMetric.markCode(ErrorCode.SUCCESS);
+            return;
+        }
+        byte[] packed = encode(data);
+        if (packed == null || !store.put(requestScope.deviceId, packed)) {
+            LOGGER.warn("Unable to store the update of device `" + requestScope.deviceId + "` locally");
+            droppedMetric.markCode(ErrorCode.LOCAL_REGISTRY_WRITE_DROPPED);
+            // 本地没存下，由 replica 确认
+            if (replica != null) {
+                replica.update(requestScope, proctorResult, storedHandler);
+            }
+            return;
+        }
+        InputContexts.registered(requestScope.deviceId);
+        storedHandler.handle(data);
+        if (replica != null) {
+            replica.update(requestScope, proctorResult);
+        }
+    }
+
+    @Override
+    public void get(@Nonnull RequestScope requestScope, @Nonnull Handler<ProctorResult> resultHandler) {
+        byte[] packed = store.get(requestScope.deviceId);
+        if (packed != null) {
+            Map<String, String> data = decode(packed);
+            if (data == null) {
+                requestScope.registryUnreadable = true;
+                resultHandler.handle(null);
+                return;
+            }
+            requestScope.registeredBuckets = data;
+            resultHandler.handle(toProctorResult(data));
+            return;
+        }
+        if (replica == null) {
+            resultHandler.handle(null);
+            return;
+        }
+        replica.get(requestScope, result -> {
+            if (result != null) {
+                // 从 replica 读到的记录存到本地，下次就不用再读
+                byte[] fetched = encode(toData(requestScope, result));
+                if (fetched != null) {
+                    store.put(requestScope.deviceId, fetched);
+                }
+            }
+            resultHandler.handle(result);
+        });
+    }
+
+    /**
+     * @return {@link RegistryCodec} 编码失败时用 JSON，都失败时返回 null
+     */
+    @Nullable
+    private byte[] encode(@Nonnull Map<String, String> data) {
+        byte[] packed = RegistryCodec.encode(data);
+        if (packed != null) {
+            return packed;
+        }
+        try {
+            return objectMapper.writeValueAsBytes(data);
+        } catch (JsonProcessingException e) {
+            LOGGER.error("Unable to write registry record as JSON", e);
+            return null;
+        }
+    }
+
+    /**
+     * JSON 以 '{' 开头，{@link RegistryCodec} 的版本号不会是它
+     * @return 解不开时返回 null
+     */
+    @Nullable
+    private Map<String, String> decode(@Nonnull byte[] packed) {
+        if (packed.length == 0 || packed[0] != '{') {
+            return RegistryCodec.decode(packed);
+        }
+        try {
+            return objectMapper.readValue(packed, DATA_TYPE);
+        } catch (IOException e) {
+            LOGGER.error("Unable to read registry record as JSON", e);
+            return null;
+        }
+    }
+}
@@ -28,11 +28,17 @@ public class Main {
         }
         */
 
-        //TODO int instances = Runtime.getRuntime().availableProcessors();
+        // 先部署唯一的加载器，实验定义加载完之后，再按核数部署请求处理实例，共享同一个 Proctor 快照
         int instances = Config.SERVER_INSTANCE_NUMBER;
-        LOGGER.info("setup vertx with " + instances + " instances");
         Vertx vertx = Vertx.vertx();
-        DeploymentOptions options = new DeploymentOptions().setInstances(instances);
-        vertx.deployVerticle(DefaultServer.class.getName(), options);
+        vertx.deployVerticle(LoaderVerticle.class.getName(), loaded -> {
+            if (loaded.failed()) {
+                LOGGER.error("Unable to deploy " + LoaderVerticle.class.getSimpleName(), loaded.cause());
+                return;
+            }
+            LOGGER.info("setup vertx with " + instances + " instances");
+            DeploymentOptions options = new DeploymentOptions().setInstances(instances);
+            vertx.deployVerticle(DefaultServer.class.getName(), options);
+        });
     }
 }
@@ -0,0 +1,353 @@
+package com.indeed.proctor.common.server;
+
+import com.google.common.collect.Lists;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 内存映射文件实现的哈希表，key 是设备 id，value 是不超过 {@link #MAX_ENTRY_SIZE} 的字节串。
+ * <p>
+ * 文件按 {@link #SEGMENT_SLOTS} 个槽位分段映射（单个映射不能超过 2G），每 {@link #REGION_SLOTS} 个槽位为一个区，
+ * 一个 key 只在它哈希到的区内线性探测，所以按区加锁就能保证读写一致。
+ * 每个槽位 {@link #SLOT_SIZE} 字节，一条记录占区内连续的若干个槽位（最多 {@link #MAX_RECORD_SLOTS} 个），不跨区。
+ * 记录的第一个槽位：状态、槽位数、代数、key 长度、value 长度（2 字节）、key 和 value 的 CRC32（4 字节），之后是 key 和 value；
+ * 后面的槽位第一个字节是 {@link #CONTINUATION}，其余接着存 key 和 value。
+ * <p>
+ * 覆盖不原地写：新记录写到空槽位或者作废记录的位置，写完最后才把状态改成 {@link #LIVE}，再把旧记录改成 {@link #DEAD}。
+ * 中途退出时旧记录还在；两条都在时读代数新的，校验不通过的记录当作不存在。
+ * 槽位不会再变回空的，作废记录的位置留给之后放得下的记录。区里没有位置时放得下的覆盖原地写，其它写入失败，由调用方决定怎么处理。
+ */
+final class MappedRegistryStore implements Closeable {
+    static final int SLOT_SIZE = 128;
+    static final int MAX_RECORD_SLOTS = 32;
+
+    private static final int HEADER_SIZE = 10;
+    static final int MAX_ENTRY_SIZE = MAX_RECORD_SLOTS * (SLOT_SIZE - 1) - (HEADER_SIZE - 1);
+    private static final int MAX_KEY_SIZE = 255;
+
+    private static final byte EMPTY = 0;
+    private static final byte LIVE = -1;
+    private static final byte DEAD = -2;
+    private static final byte CONTINUATION = -3;
+
+    private static final int SEGMENT_SLOTS = 1 << 23;
+    static final int REGION_SLOTS = 1 << 10;
+    private static final int LOCK_STRIPES = 4096;
+
+    @Nonnull
+    private final RandomAccessFile file;
+    @Nonnull
+    private final MappedByteBuffer[] segments;
+    private final long regions;
+    @Nonnull
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * @param capacity 槽位数，向上取整到 {@link #REGION_SLOTS} 的倍数。文件是稀疏的，实际占用随写入增长
+     */
+    MappedRegistryStore(@Nonnull File path, long capacity) throws IOException {
+        regions = Math.max(1, (capacity + REGION_SLOTS - 1) / REGION_SLOTS);
+        long slots = regions * REGION_SLOTS;
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(Math.max(file.length(), slots * SLOT_SIZE));
+        FileChannel channel = file.getChannel();
+        segments = new MappedByteBuffer[(int) ((slots + SEGMENT_SLOTS - 1) / SEGMENT_SLOTS)];
+        for (int i = 0; i < segments.length; i++) {
+            long firstSlot = (long) i * SEGMENT_SLOTS;
+            long size = Math.min(SEGMENT_SLOTS, slots - firstSlot) * SLOT_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, firstSlot * SLOT_SIZE, size);
+        }
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Nullable
+    byte[] get(@Nonnull String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long region = region(keyBytes);
+        synchronized (locks[(int) (region % LOCK_STRIPES)]) {
+            long first = region * REGION_SLOTS;
+            int index = start(keyBytes);
+            long latest = -1;
+            for (int visited = 0; visited < REGION_SLOTS; ) {
+                long slot = first + index;
+                byte state = state(slot);
+                if (state == EMPTY) {
+                    break;
+                }
+                if (state == LIVE && keyEquals(slot, keyBytes) && isIntact(slot) && (latest < 0 || isNewer(slot, latest))) {
+                    latest = slot;
+                }
+                int span = span(slot);
+                visited += span;
+                index = (index + span) & (REGION_SLOTS - 1);
+            }
+            return latest < 0 ? null : readValue(latest);
+        }
+    }
+
+    /**
+     * @return false 表示 key 和 value 太长，或者 key 所在的区已经没有位置，没有写入
+     */
+    boolean put(@Nonnull String key, @Nonnull byte[] value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length == 0 || keyBytes.length > MAX_KEY_SIZE || keyBytes.length + value.length > MAX_ENTRY_SIZE) {
+            return false;
+        }
+        int needed = slotsFor(keyBytes.length + value.length);
+        long region = region(keyBytes);
+        synchronized (locks[(int) (region % LOCK_STRIPES)]) {
+            long first = region * REGION_SLOTS;
+            int index = start(keyBytes);
+            List<Long> previous = Lists.newArrayListWithCapacity(1);
+            long latest = -1;
+            long target = -1;
+            for (int visited = 0; visited < REGION_SLOTS; ) {
+                long slot = first + index;
+                byte state = state(slot);
+                if (state == EMPTY) {
+                    if (target >= 0) {
+                        break;
+                    }
+                    int run = emptyRun(slot, Math.min(needed, REGION_SLOTS - index));
+                    if (run == needed) {
+                        target = slot;
+                        break;
+                    }
+                    // 放不下，当作作废记录占住，后面的记录照样探测得到
+                    writeDead(slot, run);
+                } else if (state == LIVE) {
+                    if (keyEquals(slot, keyBytes)) {
+                        previous.add(slot);
+                        if (isIntact(slot) && (latest < 0 || isNewer(slot, latest))) {
+                            latest = slot;
+                        }
+                    }
+                } else if (target < 0 && state == DEAD && span(slot) >= needed) {
+                    target = slot;
+                }
+                int span = span(slot);
+                visited += span;
+                index = (index + span) & (REGION_SLOTS - 1);
+            }
+            int generation = latest < 0 ? 0 : generation(latest) + 1;
+            if (target < 0) {
+                if (latest < 0 || span(latest) < needed) {
+                    return false;
+                }
+                // 区里没有位置了只能原地覆盖：先作废再写，中途退出时丢掉这条记录，但不会读到写了一半的内容
+                target = latest;
+                previous.remove(Long.valueOf(target));
+                kill(target);
+            }
+            writeRecord(target, Math.max(needed, span(target)), generation, keyBytes, value);
+            for (long slot : previous) {
+                kill(slot);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 把修改写回磁盘，会阻塞
+     */
+    void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        file.close();
+    }
+
+    /**
+     * 先写内容，最后写状态，写到一半进程退出时不会被读到
+     */
+    private void writeRecord(long slot, int slots, int generation, @Nonnull byte[] keyBytes, @Nonnull byte[] value) {
+        MappedByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        for (int i = 1; i < slots; i++) {
+            segment.put(offset + i * SLOT_SIZE, CONTINUATION);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(keyBytes);
+        crc.update(value);
+        segment.put(offset + 1, (byte) slots);
+        segment.put(offset + 2, (byte) generation);
+        segment.put(offset + 3, (byte) keyBytes.length);
+        segment.putShort(offset + 4, (short) value.length);
+        segment.putInt(offset + 6, (int) crc.getValue());
+        for (int i = 0; i < keyBytes.length; i++) {
+            segment.put(offset + dataPosition(i), keyBytes[i]);
+        }
+        for (int i = 0; i < value.length; i++) {
+            segment.put(offset + dataPosition(keyBytes.length + i), value[i]);
+        }
+        segment.put(offset, LIVE);
+    }
+
+    private void kill(long slot) {
+        segment(slot).put(offset(slot), DEAD);
+    }
+
+    private void writeDead(long slot, int slots) {
+        MappedByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        for (int i = 1; i < slots; i++) {
+            segment.put(offset + i * SLOT_SIZE, CONTINUATION);
+        }
+        segment.put(offset + 1, (byte) slots);
+        segment.put(offset, DEAD);
+    }
+
+    /**
+     * @return 从 slot 开始连续的空槽位数，最多 limit 个
+     */
+    private int emptyRun(long slot, int limit) {
+        int run = 1;
+        while (run < limit && state(slot + run) == EMPTY) {
+            run++;
+        }
+        return run;
+    }
+
+    private byte state(long slot) {
+        return segment(slot).get(offset(slot));
+    }
+
+    /**
+     * @return 从 slot 开始的记录占的槽位数，不超出所在的区
+     */
+    private int span(long slot) {
+        byte state = state(slot);
+        if (state != LIVE && state != DEAD) {
+            return 1;
+        }
+        int slots = segment(slot).get(offset(slot) + 1) & 0xFF;
+        return Math.max(1, Math.min(slots, REGION_SLOTS - (int) (slot % REGION_SLOTS)));
+    }
+
+    /**
+     * @return 记录能放下的 key 和 value 的总字节数
+     */
+    private int capacity(long slot) {
+        return span(slot) * (SLOT_SIZE - 1) - (HEADER_SIZE - 1);
+    }
+
+    private int generation(long slot) {
+        return segment(slot).get(offset(slot) + 2);
+    }
+
+    /**
+     * 代数会回绕
+     */
+    private boolean isNewer(long slot, long than) {
+        return (byte) (generation(slot) - generation(than)) > 0;
+    }
+
+    private int keyLength(long slot) {
+        return segment(slot).get(offset(slot) + 3) & 0xFF;
+    }
+
+    private int valueLength(long slot) {
+        return segment(slot).getShort(offset(slot) + 4) & 0xFFFF;
+    }
+
+    /**
+     * @return 记录里第 i 个 key 或 value 字节相对记录开头的位置
+     */
+    private static int dataPosition(int i) {
+        int head = SLOT_SIZE - HEADER_SIZE;
+        if (i < head) {
+            return HEADER_SIZE + i;
+        }
+        int rest = i - head;
+        return (1 + rest / (SLOT_SIZE - 1)) * SLOT_SIZE + 1 + rest % (SLOT_SIZE - 1);
+    }
+
+    private static int slotsFor(int size) {
+        return (size + HEADER_SIZE - 1 + SLOT_SIZE - 2) / (SLOT_SIZE - 1);
+    }
+
+    private boolean keyEquals(long slot, @Nonnull byte[] keyBytes) {
+        if (keyLength(slot) != keyBytes.length || keyBytes.length > capacity(slot)) {
+            return false;
+        }
+        MappedByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (segment.get(offset + dataPosition(i)) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 记录完整写入
+     */
+    private boolean isIntact(long slot) {
+        int length = keyLength(slot) + valueLength(slot);
+        if (length > capacity(slot)) {
+            return false;
+        }
+        MappedByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < length; i++) {
+            crc.update(segment.get(offset + dataPosition(i)));
+        }
+        return (int) crc.getValue() == segment.getInt(offset + 6);
+    }
+
+    @Nonnull
+    private byte[] readValue(long slot) {
+        MappedByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        int keyLength = keyLength(slot);
+        byte[] value = new byte[valueLength(slot)];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = segment.get(offset + dataPosition(keyLength + i));
+        }
+        return value;
+    }
+
+    private int start(@Nonnull byte[] keyBytes) {
+        return (int) ((spread(keyBytes) >>> 32) & (REGION_SLOTS - 1));
+    }
+
+    private long region(@Nonnull byte[] keyBytes) {
+        return (spread(keyBytes) & Long.MAX_VALUE) % regions;
+    }
+
+    private static long spread(@Nonnull byte[] keyBytes) {
+        long h = 1125899906842597L;
+        for (byte b : keyBytes) {
+            h = 31 * h + b;
+        }
+        return h * 0x9E3779B97F4A7C15L;
+    }
+
+    @Nonnull
+    private MappedByteBuffer segment(long slot) {
+        return segments[(int) (slot / SEGMENT_SLOTS)];
+    }
+
+    private static int offset(long slot) {
+        return (int) (slot % SEGMENT_SLOTS) * SLOT_SIZE;
+    }
+}
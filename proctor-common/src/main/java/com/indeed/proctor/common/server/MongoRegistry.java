@@ -1,57 +1,91 @@
 package com.indeed.proctor.common.server;
 
+import com.duowan.sysop.hawk.metrics.client2.type.DefMetricsValue;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.indeed.proctor.common.ProctorResult;
-import com.indeed.proctor.common.model.TestBucket;
 import io.vertx.core.Context;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.mongo.MongoClient;
 import org.apache.log4j.Logger;
 
 import javax.annotation.Nonnull;
-import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 
+/**
+ * 设备的分组记录存在 Mongo 里，用 {@link RegistryCodec} 编码成二进制，也能读旧的字符串格式。
+ * 写入先放到缓冲区，同一个设备只保留最后一次，由 {@link #setupPeriodic()} 定时批量写入；分组没有变化的不写。
+ */
 public class MongoRegistry extends Registry {
 
     private static final Logger LOGGER = Logger.getLogger(MongoRegistry.class);
     private final static String collection = "registry";
 
+    // 所有实例共享，等待写入的设备记录
+    private static final ConcurrentMap<String, PendingWrite> pendingWrites = Maps.newConcurrentMap();
+
+    // 只在执行 setupPeriodic 的 context 上访问
+    private boolean flushing = false;
+
+    private final DefMetricsValue unchangedMetric;
+    private final DefMetricsValue droppedMetric;
+    private final DefMetricsValue flushMetric;
+
     public MongoRegistry(@Nonnull Vertx vertx, @Nonnull Context context, @Nonnull MongoClient mongoClient) {
         super(vertx, context, mongoClient);
+        unchangedMetric = MetricsClient.getDefMetricsValue("registry/unchanged");
+        droppedMetric = MetricsClient.getDefMetricsValue("registry/dropped");
+        flushMetric = MetricsClient.getDefMetricsValue("registry/flush");
     }
 
     @Override
     public void setupPeriodic() {
-
+        LOGGER.info("setup periodic to flush registry every " + Config.REGISTRY_FLUSH_INTERVAL_MS + "ms");
+        vertx.setPeriodic(Config.REGISTRY_FLUSH_INTERVAL_MS, id -> flush());
     }
 
     @Override
-    public void update(@Nonnull RequestScope requestScope, @Nonnull ProctorResult proctorResult) {
-        Map<String, String> data = Maps.newHashMap();
-        proctorResult.getBuckets().forEach((testId, testBucket) -> {
-            // 为了减小存储容量，只关心bucketName
-            data.put(testId, testBucket.getName());
-        });
-        JsonObject document = new JsonObject()
-                .put("_id", requestScope.deviceId)
-                .put("data", data)
-                .put("timestamp", System.currentTimeMillis());
-        mongoClient.save(collection, document, res -> {
-            if (res.failed()) {
-                LOGGER.error("Unable save to collection " + collection + ": " + res.cause().toString());
-                requestScope.errorCode = ErrorCode.MONGODB_WRITE_ERROR;
-            }
-        });
+    public void update(@Nonnull RequestScope requestScope, @Nonnull ProctorResult proctorResult,
+                       @Nonnull Handler<Map<String, String>> storedHandler) {
+        if (requestScope.registryUnreadable) {
+            LOGGER.warn("Registry record of device `" + requestScope.deviceId + "` is unreadable, not overwriting it");
+            droppedMetric.markCode(ErrorCode.MONGODB_WRITE_DROPPED);
+            return;
+        }
+        Map<String, String> data = toData(requestScope, proctorResult);
+        if (data.equals(requestScope.registeredBuckets)) {
+            unchangedMetric.markCode(ErrorCode.SUCCESS);
+            return;
+        }
+        String deviceId = requestScope.deviceId;
+        if (pendingWrites.size() >= Config.REGISTRY_WRITE_BUFFER_SIZE && !pendingWrites.containsKey(deviceId)) {
+            LOGGER.warn("Registry write buffer is full, drop the update of device `" + deviceId + "`");
+            droppedMetric.markCode(ErrorCode.MONGODB_WRITE_DROPPED);
+            return;
+        }
+        // 写入 Mongo 确认之后才算注册，见 writeBatches
+        pendingWrites.put(deviceId, new PendingWrite(data, System.currentTimeMillis(), storedHandler));
     }
 
     @Override
     public void get(@Nonnull RequestScope requestScope, @Nonnull Handler<ProctorResult> resultHandler) {
+        // 还没写入的记录比 Mongo 里的新
+        PendingWrite pending = pendingWrites.get(requestScope.deviceId);
+        if (pending != null) {
+            requestScope.registeredBuckets = pending.data;
+            resultHandler.handle(toProctorResult(pending.data));
+            return;
+        }
         JsonObject query = new JsonObject().put("_id", requestScope.deviceId);
-        JsonObject fields = new JsonObject().put("data", 1);
+        JsonObject fields = new JsonObject().put("data", 1).put("buckets", 1);
         mongoClient.findOne(collection, query, fields, res -> {
             if (res.succeeded()) {
                 JsonObject json = res.result();
@@ -59,16 +93,21 @@ public class MongoRegistry extends Registry {
                     resultHandler.handle(null);
                     return;
                 }
-                Map<String, Object> data = json.getJsonObject("data").getMap();
-                Map<String, TestBucket> buckets = Maps.newHashMap();
-                data.forEach((testId, bucketName) -> {
-                    TestBucket bucket = new TestBucket();
-                    bucket.setName((String) bucketName);
-                    buckets.put(testId, bucket);
-                });
-                ProctorResult proctorResult = new ProctorResult();
-                proctorResult.setBuckets(buckets);
-                resultHandler.handle(proctorResult);
+                Map<String, ?> data;
+                if (json.containsKey("buckets")) {
+                    data = RegistryCodec.decode(json.getJsonObject("buckets").getBinary("$binary"));
+                    if (data == null) {
+                        requestScope.registryUnreadable = true;
+                        resultHandler.handle(null);
+                        return;
+                    }
+                    requestScope.registeredBuckets = data;
+                } else {
+                    data = json.getJsonObject("data").getMap();
+                    // 旧的字符串格式，开启紧凑编码时让这次更新重写一遍
+                    requestScope.registeredBuckets = Config.REGISTRY_COMPACT_ENCODING ? null : data;
+                }
+                resultHandler.handle(toProctorResult(data));
             } else {
                 LOGGER.error("Unable get from collection " + collection + ": " + res.cause().toString());
                 requestScope.errorCode = ErrorCode.MONGODB_READ_ERROR;
@@ -76,4 +115,106 @@ public class MongoRegistry extends Registry {
             }
         });
     }
+
+    /**
+     * 把缓冲区里的记录分批 upsert。写入成功且期间没有更新的记录才从缓冲区移除，失败的下个周期重试。
+     * 写入确认之后设备才不再是新用户
+     */
+    private void flush() {
+        if (flushing || pendingWrites.isEmpty()) {
+            return;
+        }
+        flushing = true;
+        List<Map.Entry<String, PendingWrite>> batch = Lists.newArrayListWithCapacity(Config.REGISTRY_FLUSH_BATCH_SIZE);
+        List<List<Map.Entry<String, PendingWrite>>> batches = Lists.newArrayList();
+        for (Map.Entry<String, PendingWrite> entry : pendingWrites.entrySet()) {
+            batch.add(Maps.immutableEntry(entry.getKey(), entry.getValue()));
+            if (batch.size() == Config.REGISTRY_FLUSH_BATCH_SIZE) {
+                batches.add(batch);
+                batch = Lists.newArrayListWithCapacity(Config.REGISTRY_FLUSH_BATCH_SIZE);
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        writeBatches(batches, 0);
+    }
+
+    private void writeBatches(List<List<Map.Entry<String, PendingWrite>>> batches, int index) {
+        if (index == batches.size()) {
+            flushing = false;
+            return;
+        }
+        List<Map.Entry<String, PendingWrite>> batch = batches.get(index);
+        JsonArray updates = new JsonArray();
+        batch.forEach(entry -> updates.add(new JsonObject()
+                .put("q", new JsonObject().put("_id", entry.getKey()))
+                .put("u", entry.getValue().toDocument())
+                .put("upsert", true)));
+        // 命令名必须是第一个字段
+        JsonObject command = new JsonObject()
+                .put("update", collection)
+                .put("updates", updates)
+                .put("ordered", false);
+        long start = System.currentTimeMillis();
+        mongoClient.runCommand("update", command, res -> {
+            long duration = System.currentTimeMillis() - start;
+            if (res.succeeded() && !res.result().containsKey("writeConcernError")) {
+                // ordered:false 时单条 upsert 失败命令也算成功，失败的记录在 writeErrors 里，留在缓冲区下次重试
+                Set<Integer> failed = Sets.newHashSet();
+                JsonArray writeErrors = res.result().getJsonArray("writeErrors");
+                if (writeErrors != null) {
+                    for (int i = 0; i < writeErrors.size(); i++) {
+                        JsonObject writeError = writeErrors.getJsonObject(i);
+                        failed.add(writeError.getInteger("index"));
+                        // 每条失败的 upsert 记一次写入错误
+                        flushMetric.markCode(ErrorCode.MONGODB_WRITE_ERROR);
+                    }
+                    LOGGER.error("Unable save " + writeErrors.size() + " of " + batch.size() + " documents to collection "
+                            + collection + ": " + writeErrors.getJsonObject(0).getString("errmsg"));
+                }
+                for (int i = 0; i < batch.size(); i++) {
+                    if (failed.contains(i)) {
+                        continue;
+                    }
+                    Map.Entry<String, PendingWrite> entry = batch.get(i);
+                    // 期间又有更新的，由更新的那次写入通知
+                    if (pendingWrites.remove(entry.getKey(), entry.getValue())) {
+                        entry.getValue().storedHandler.handle(entry.getValue().data);
+                    }
+                    InputContexts.registered(entry.getKey());
+                }
+                flushMetric.markDurationAndCode(duration, ErrorCode.SUCCESS);
+                writeBatches(batches, index + 1);
+            } else {
+                String cause = res.succeeded() ? res.result().getJsonObject("writeConcernError").encode() : res.cause().toString();
+                LOGGER.error("Unable save " + batch.size() + " documents to collection " + collection + ": " + cause);
+                flushMetric.markDurationAndCode(duration, ErrorCode.MONGODB_WRITE_ERROR);
+                flushing = false;
+            }
+        });
+    }
+
+    private static final class PendingWrite {
+        final Map<String, String> data;
+        final long timestamp;
+        final Handler<Map<String, String>> storedHandler;
+
+        PendingWrite(Map<String, String> data, long timestamp, Handler<Map<String, String>> storedHandler) {
+            this.data = data;
+            this.timestamp = timestamp;
+            this.storedHandler = storedHandler;
+        }
+
+        JsonObject toDocument() {
+            byte[] packed = Config.REGISTRY_COMPACT_ENCODING ? RegistryCodec.encode(data) : null;
+            JsonObject document = new JsonObject();
+            if (packed != null) {
+                document.put("buckets", new JsonObject().put("$binary", packed));
+            } else {
+                document.put("data", new JsonObject(Maps.<String, Object>newHashMap(data)));
+            }
+            return document.put("timestamp", timestamp);
+        }
+    }
 }
@@ -0,0 +1,34 @@
+package com.indeed.proctor.common.server;
+
+import com.indeed.proctor.common.Proctor;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 当前生效的实验定义。
+ * 由唯一的 {@link LoaderVerticle} 发布，所有 {@link DefaultServer} 实例在各自的 event loop 上无锁读取。
+ * Proctor 构造之后不再改变，所以整体替换引用即可。
+ */
+public final class ProctorSnapshot {
+    private static final AtomicReference<Proctor> CURRENT = new AtomicReference<>(Proctor.EMPTY);
+
+    private ProctorSnapshot() {
+    }
+
+    /**
+     * 每个请求开始时取一次，整个请求内使用同一个快照
+     */
+    @Nonnull
+    public static Proctor get() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return 被替换掉的旧快照
+     */
+    @Nonnull
+    static Proctor publish(@Nonnull Proctor proctor) {
+        return CURRENT.getAndSet(proctor);
+    }
+}
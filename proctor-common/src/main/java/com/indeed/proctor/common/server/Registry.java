@@ -1,8 +1,11 @@
 package com.indeed.proctor.common.server;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.indeed.proctor.common.ProctorResult;
 import com.indeed.proctor.common.Serializers;
+import com.indeed.proctor.common.model.TestBucket;
 import io.vertx.core.Context;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
@@ -10,6 +13,8 @@ import io.vertx.ext.mongo.MongoClient;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.Set;
 
 
 public abstract class Registry {
@@ -31,7 +36,65 @@ public abstract class Registry {
 
     abstract public void setupPeriodic();
 
-    abstract public void update(@Nonnull RequestScope requestScope, @Nonnull ProctorResult proctorResult);
+    public void update(@Nonnull RequestScope requestScope, @Nonnull ProctorResult proctorResult) {
+        update(requestScope, proctorResult, data -> {
+        });
+    }
+
+    /**
+     * @param storedHandler 下层接受或者确认写入之后才调用，参数是写入的记录；没有变化、丢弃或者失败的写入不调用。
+     *                      可能在别的线程上执行
+     */
+    abstract public void update(@Nonnull RequestScope requestScope, @Nonnull ProctorResult proctorResult,
+                                @Nonnull Handler<Map<String, String>> storedHandler);
 
     abstract public void get(@Nonnull RequestScope requestScope, @Nonnull Handler<ProctorResult> resultHandler);
+
+    /**
+     * 为了减小存储容量，只记录 testId -> bucketName
+     */
+    @Nonnull
+    protected static Map<String, String> toData(@Nonnull ProctorResult proctorResult) {
+        Map<String, String> data = Maps.newHashMap();
+        proctorResult.forEachBucket((testId, testBucket) -> data.put(testId, testBucket.getName()));
+        return data;
+    }
+
+    /**
+     * 同 {@link #toData(ProctorResult)}，再带上上次记录里 {@link RegistryCodec} 解不开的项，这些项不会被覆盖掉
+     */
+    @Nonnull
+    protected static Map<String, String> toData(@Nonnull RequestScope requestScope, @Nonnull ProctorResult proctorResult) {
+        Map<String, String> data = toData(proctorResult);
+        if (requestScope.registeredBuckets == null) {
+            return data;
+        }
+        Set<String> current = Sets.newHashSet();
+        data.keySet().forEach(testId -> current.add(RegistryCodec.toOpaque(testId)));
+        requestScope.registeredBuckets.forEach((testId, bucketName) -> {
+            if (RegistryCodec.isOpaque(testId) && !current.contains(testId)) {
+                data.put(testId, (String) bucketName);
+            }
+        });
+        return data;
+    }
+
+    /**
+     * {@link RegistryCodec} 解不开的项不在结果里
+     */
+    @Nonnull
+    protected static ProctorResult toProctorResult(@Nonnull Map<String, ?> data) {
+        Map<String, TestBucket> buckets = Maps.newHashMap();
+        data.forEach((testId, bucketName) -> {
+            if (RegistryCodec.isOpaque(testId)) {
+                return;
+            }
+            TestBucket bucket = new TestBucket();
+            bucket.setName((String) bucketName);
+            buckets.put(testId, bucket);
+        });
+        ProctorResult proctorResult = new ProctorResult();
+        proctorResult.setBuckets(buckets);
+        return proctorResult;
+    }
 }
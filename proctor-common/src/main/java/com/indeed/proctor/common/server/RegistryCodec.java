@@ -0,0 +1,241 @@
+package com.indeed.proctor.common.server;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.indeed.proctor.common.Proctor;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry 记录的紧凑编码，代替 testId -> bucketName 的字符串 map。
+ * <p>
+ * 格式：1 字节版本号；varint 编码的分组名个数，每个分组名是 varint 编码的长度加 UTF-8 字节，同名的只存一次；
+ * varint 编码的实验个数，之后每个实验一项：4 字节 testId 的 {@link String#hashCode()}，加上 varint 编码的分组名序号。
+ * <p>
+ * 分组按名字存，后台给分组重新编号不会让设备换组。testId 的 hash 用当前实验定义还原；
+ * 还原不了的项（实验不在当前定义里）不丢弃，解码成 {@link #OPAQUE_PREFIX} 开头的项原样保留，
+ * 下次编码时按原来的 hash 和分组写回去，实验回来以后还能解开。
+ * 实验定义还没加载（{@link Proctor#EMPTY}）时既不编码也不解码。
+ */
+final class RegistryCodec {
+    private static final Logger LOGGER = Logger.getLogger(RegistryCodec.class);
+
+    private static final byte VERSION = 1;
+
+    /**
+     * 解不开的项的 key 是这个前缀加 8 位十六进制的 hash。实验名不会以它开头
+     */
+    static final String OPAQUE_PREFIX = "#";
+
+    // varint 最多 5 字节
+    private static final int MAX_VARINT_BYTES = 5;
+
+    private static volatile Dictionary dictionary;
+
+    private RegistryCodec() {
+    }
+
+    static boolean isOpaque(@Nonnull String testId) {
+        return testId.startsWith(OPAQUE_PREFIX);
+    }
+
+    /**
+     * @return 实验定义还没加载、有实验不在当前实验定义里，或者字典有冲突时返回 null，由调用方改用字符串格式
+     */
+    @Nullable
+    static byte[] encode(@Nonnull Map<String, String> data) {
+        return encode(data, ProctorSnapshot.get());
+    }
+
+    @Nullable
+    static byte[] encode(@Nonnull Map<String, String> data, @Nonnull Proctor proctor) {
+        Dictionary dict = dictionary(proctor);
+        if (dict == null || dict.collision) {
+            return null;
+        }
+        Map<String, Integer> nameIndexes = Maps.newLinkedHashMap();
+        for (String bucketName : data.values()) {
+            if (!nameIndexes.containsKey(bucketName)) {
+                nameIndexes.put(bucketName, nameIndexes.size());
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(2 + nameIndexes.size() * 8 + data.size() * 5);
+        out.write(VERSION);
+        writeVarint(out, nameIndexes.size());
+        for (String bucketName : nameIndexes.keySet()) {
+            byte[] name = bucketName.getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, name.length);
+            out.write(name, 0, name.length);
+        }
+        writeVarint(out, data.size());
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            String testId = entry.getKey();
+            int hash;
+            if (isOpaque(testId)) {
+                hash = parseOpaque(testId);
+            } else if (dict.testIds.containsKey(testId.hashCode())) {
+                hash = testId.hashCode();
+            } else {
+                return null;
+            }
+            out.write(hash >>> 24);
+            out.write(hash >>> 16);
+            out.write(hash >>> 8);
+            out.write(hash);
+            writeVarint(out, nameIndexes.get(entry.getValue()));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return 解不开的项以 {@link #OPAQUE_PREFIX} 开头原样保留；实验定义还没加载、版本未知或者记录损坏时返回 null，
+     *         这时调用方不能用这次请求的结果覆盖这条记录
+     */
+    @Nullable
+    static Map<String, String> decode(@Nonnull byte[] packed) {
+        return decode(packed, ProctorSnapshot.get());
+    }
+
+    @Nullable
+    static Map<String, String> decode(@Nonnull byte[] packed, @Nonnull Proctor proctor) {
+        Dictionary dict = dictionary(proctor);
+        if (dict == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(packed);
+        byte version = buffer.hasRemaining() ? buffer.get() : 0;
+        if (version != VERSION) {
+            LOGGER.error("Unknown registry encoding version " + version);
+            return null;
+        }
+        long nameCount = readVarint(buffer);
+        // 每个分组名至少 1 字节
+        if (nameCount < 0 || nameCount > buffer.remaining()) {
+            LOGGER.error("Corrupted registry record");
+            return null;
+        }
+        List<String> bucketNames = Lists.newArrayListWithCapacity((int) nameCount);
+        for (int i = 0; i < nameCount; i++) {
+            long length = readVarint(buffer);
+            if (length < 0 || length > buffer.remaining()) {
+                LOGGER.error("Corrupted registry record");
+                return null;
+            }
+            byte[] name = new byte[(int) length];
+            buffer.get(name);
+            bucketNames.add(new String(name, StandardCharsets.UTF_8));
+        }
+        long entryCount = readVarint(buffer);
+        // 每项至少 5 字节
+        if (entryCount < 0 || entryCount * 5 > buffer.remaining()) {
+            LOGGER.error("Corrupted registry record");
+            return null;
+        }
+        Map<String, String> data = Maps.newHashMapWithExpectedSize((int) entryCount);
+        for (int i = 0; i < entryCount; i++) {
+            if (buffer.remaining() < 4) {
+                LOGGER.error("Corrupted registry record");
+                return null;
+            }
+            int hash = buffer.getInt();
+            long nameIndex = readVarint(buffer);
+            if (nameIndex < 0 || nameIndex >= bucketNames.size()) {
+                LOGGER.error("Corrupted registry record");
+                return null;
+            }
+            String testId = dict.collision ? null : dict.testIds.get(hash);
+            data.put(testId != null ? testId : toOpaque(hash), bucketNames.get((int) nameIndex));
+        }
+        if (buffer.hasRemaining()) {
+            LOGGER.error("Corrupted registry record");
+            return null;
+        }
+        return data;
+    }
+
+    private static void writeVarint(@Nonnull ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * @return 无符号的 32 位值，记录被截断或者 varint 太长时返回 -1
+     */
+    private static long readVarint(@Nonnull ByteBuffer buffer) {
+        long value = 0;
+        for (int i = 0; i < MAX_VARINT_BYTES; i++) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << (7 * i);
+            if (b >= 0) {
+                return value & 0xFFFFFFFFL;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return 这个实验解不开时的 key
+     */
+    @Nonnull
+    static String toOpaque(@Nonnull String testId) {
+        return toOpaque(testId.hashCode());
+    }
+
+    @Nonnull
+    private static String toOpaque(int hash) {
+        return OPAQUE_PREFIX + String.format("%08x", hash);
+    }
+
+    private static int parseOpaque(@Nonnull String testId) {
+        return (int) Long.parseLong(testId.substring(OPAQUE_PREFIX.length()), 16);
+    }
+
+    /**
+     * @return 实验定义还没加载时返回 null
+     */
+    @Nullable
+    private static Dictionary dictionary(@Nonnull Proctor proctor) {
+        if (proctor == Proctor.EMPTY) {
+            return null;
+        }
+        Dictionary dict = dictionary;
+        if (dict == null || dict.proctor != proctor) {
+            dict = new Dictionary(proctor);
+            dictionary = dict;
+        }
+        return dict;
+    }
+
+    /**
+     * 一个实验定义快照对应的字典
+     */
+    private static final class Dictionary {
+        final Proctor proctor;
+        final Map<Integer, String> testIds = Maps.newHashMap();
+        boolean collision = false;
+
+        Dictionary(Proctor proctor) {
+            this.proctor = proctor;
+            for (String testId : proctor.getArtifact().getTests().keySet()) {
+                String other = testIds.put(testId.hashCode(), testId);
+                if (other != null) {
+                    LOGGER.warn("Tests `" + testId + "` and `" + other + "` have the same hash, registry falls back to strings");
+                    collision = true;
+                }
+            }
+        }
+    }
+}
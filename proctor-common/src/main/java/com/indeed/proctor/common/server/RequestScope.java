@@ -1,12 +1,16 @@
 package com.indeed.proctor.common.server;
 
 import com.duowan.sysop.hawk.metrics.client2.type.DefMetricsValue;
+import com.indeed.proctor.common.ProctorResult;
 import io.vertx.core.http.HttpClient;
 import io.vertx.ext.mongo.MongoClient;
 
+import java.util.Map;
+
 public class RequestScope {
     HttpClient httpClient;
     MongoClient mongoClient;
+    Registry registry;
     String userId;
     String deviceId;
     String platform;
@@ -16,4 +20,11 @@ public class RequestScope {
     String appVersion;
     String phoneType;
     int errorCode;
+    // Registry 里读到的上次分组，没有变化就不用再写
+    Map<String, ?> registeredBuckets;
+    // Registry 里的记录解不开（实验定义还没加载、格式不认识），这次请求不能覆盖它
+    boolean registryUnreadable;
+    // 同一个请求里只读一次 Registry
+    boolean registryLoaded;
+    ProctorResult registryResult;
 }
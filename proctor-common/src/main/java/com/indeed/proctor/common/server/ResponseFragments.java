@@ -0,0 +1,104 @@
+package com.indeed.proctor.common.server;
+
+import com.duowan.sysop.hawk.metrics.client2.type.DefMetricsValue;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.indeed.proctor.common.Proctor;
+import com.indeed.proctor.common.ProctorResult;
+import com.indeed.proctor.common.model.ConsumableTestDefinition;
+import com.indeed.proctor.common.model.TestBucket;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * /convert 应答里每个实验分组预先编码好的 <code>"testId":"bucketName"</code>，以及对应的 metrics。
+ * 每个实验定义快照算一次，拼应答时不用再建 map 和 JsonObject，也不用拼 metrics 的 key。
+ */
+final class ResponseFragments {
+    private static final byte[] PREFIX = bytes("{\"code\":" + ErrorCode.SUCCESS2 + ",\"message\":\"Success\",\"data\":{");
+    private static final byte[] SUFFIX = bytes("}}");
+
+    private static volatile ResponseFragments current;
+
+    @Nonnull
+    private final Proctor proctor;
+    // testId -> bucketName -> fragment
+    @Nonnull
+    private final Map<String, Map<String, Fragment>> fragments = Maps.newHashMap();
+
+    private ResponseFragments(@Nonnull Proctor proctor) {
+        this.proctor = proctor;
+        for (Map.Entry<String, ConsumableTestDefinition> entry : proctor.getArtifact().getTests().entrySet()) {
+            String testId = entry.getKey();
+            Map<String, Fragment> byBucket = Maps.newHashMap();
+            for (TestBucket bucket : entry.getValue().getBuckets()) {
+                byBucket.put(bucket.getName(), new Fragment(testId, bucket.getName()));
+            }
+            fragments.put(testId, byBucket);
+        }
+    }
+
+    @Nonnull
+    static ResponseFragments of(@Nonnull Proctor proctor) {
+        ResponseFragments fragments = current;
+        if (fragments == null || fragments.proctor != proctor) {
+            fragments = new ResponseFragments(proctor);
+            current = fragments;
+        }
+        return fragments;
+    }
+
+    /**
+     * 拼出应答，同时利用metrics记录每个实验每个分组的请求数。先挑出分组再按总长度分配一次
+     */
+    @Nonnull
+    Buffer toResponse(@Nonnull ProctorResult proctorResult) {
+        List<Fragment> chosen = Lists.newArrayListWithCapacity(fragments.size());
+        proctorResult.forEachBucket((testId, bucket) -> {
+            String variationKey = bucket.getName();
+            if (variationKey.equals("inactive"))
+                return;
+            Map<String, Fragment> byBucket = fragments.get(testId);
+            Fragment fragment = byBucket == null ? null : byBucket.get(variationKey);
+            if (fragment == null) {
+                // 合并进来的暂停实验，分组可能已经不在实验定义里
+                fragment = new Fragment(testId, variationKey);
+            }
+            chosen.add(fragment);
+        });
+        int length = PREFIX.length + SUFFIX.length + Math.max(0, chosen.size() - 1);
+        for (Fragment fragment : chosen) {
+            length += fragment.bytes.length;
+        }
+        Buffer buffer = Buffer.buffer(length);
+        buffer.appendBytes(PREFIX);
+        for (int i = 0; i < chosen.size(); i++) {
+            Fragment fragment = chosen.get(i);
+            if (i > 0) {
+                buffer.appendByte((byte) ',');
+            }
+            buffer.appendBytes(fragment.bytes);
+            fragment.metric.markCode(ErrorCode.SUCCESS2);
+        }
+        return buffer.appendBytes(SUFFIX);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final class Fragment {
+        final byte[] bytes;
+        final DefMetricsValue metric;
+
+        Fragment(String testId, String bucketName) {
+            this.bytes = bytes(Json.encode(testId) + ":" + Json.encode(bucketName));
+            this.metric = MetricsClient.getDefMetricsValue(testId + "/" + bucketName);
+        }
+    }
+}
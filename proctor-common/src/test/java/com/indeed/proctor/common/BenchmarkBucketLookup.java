@@ -0,0 +1,59 @@
+package com.indeed.proctor.common;
+
+import com.indeed.proctor.common.model.TestBucket;
+
+import java.util.Random;
+
+/**
+ * Compares the linear cutoff scan {@link StandardTestChooser} used to do against {@link StandardTestChooser.BucketLookup}
+ * for the interleaved 10,000-range allocations created by {@link RemoteProctorLoader}.
+ */
+public class BenchmarkBucketLookup {
+    public static void main(final String[] args) {
+        final int numRanges = 10000;
+        final TestBucket[] choices = {
+                new TestBucket("control", 0, "zoot", null),
+                new TestBucket("test", 1, "zoot", null),
+                new TestBucket("test2", 2, "zoot", null),
+        };
+
+        final int[] cutoffs = new int[numRanges - 1];
+        final TestBucket[] buckets = new TestBucket[numRanges];
+        double bucketTotal = 0;
+        for (int i = 0; i < numRanges; i++) {
+            bucketTotal += 1.0 / numRanges;
+            if (i < cutoffs.length) {
+                cutoffs[i] = (int) (Integer.MIN_VALUE + bucketTotal * Proctor.INT_RANGE);
+            }
+            buckets[i] = choices[i % choices.length];
+        }
+        final StandardTestChooser.BucketLookup lookup = StandardTestChooser.BucketLookup.create(cutoffs, buckets);
+
+        final int iterations = 1000 * 1000;
+        final int[] values = new int[iterations];
+        final Random random = new Random(0);
+        for (int i = 0; i < iterations; i++) {
+            values[i] = random.nextInt();
+        }
+
+        for (int round = 0; round < 5; round++) {
+            long checksum = 0;
+            long linearElapsed = -System.nanoTime();
+            for (final int value : values) {
+                int i;
+                for (i = 0; i < cutoffs.length && value > cutoffs[i]; i++) { /* intentionally empty */ }
+                checksum += buckets[i].getValue();
+            }
+            linearElapsed += System.nanoTime();
+
+            long lookupElapsed = -System.nanoTime();
+            for (final int value : values) {
+                checksum -= lookup.choose(value).getValue();
+            }
+            lookupElapsed += System.nanoTime();
+
+            System.out.println("round " + round + ": linear " + (linearElapsed / iterations) + " ns/lookup, "
+                    + "binary search " + (lookupElapsed / iterations) + " ns/lookup (checksum " + checksum + ", should be 0)");
+        }
+    }
+}
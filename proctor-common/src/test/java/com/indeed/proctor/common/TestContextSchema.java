@@ -0,0 +1,105 @@
+package com.indeed.proctor.common;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+public class TestContextSchema {
+    private static final ContextSchema SCHEMA = ContextSchema.of(ImmutableMap.of(
+            "platform", "String",
+            "resolutionWidth", "int",
+            "isBrandNewUser", "boolean",
+            "phoneType", "char"));
+
+    @Test
+    public void testEmptySchema() {
+        Assert.assertNull(ContextSchema.of(null));
+        Assert.assertNull(ContextSchema.of(Collections.<String, String>emptyMap()));
+    }
+
+    @Test
+    public void testSlots() {
+        Assert.assertEquals(4, SCHEMA.size());
+        for (int i = 0; i < SCHEMA.size(); i++) {
+            Assert.assertEquals(i, SCHEMA.getSlot(SCHEMA.getVariables().get(i)));
+        }
+        Assert.assertEquals(-1, SCHEMA.getSlot("lang"));
+        Assert.assertEquals(-1, SCHEMA.getSlot(null));
+    }
+
+    @Test
+    public void testValuesBehaveLikeAMap() {
+        final Map<String, Object> values = SCHEMA.newValues();
+        final Map<String, Object> expected = Maps.newHashMap();
+        Assert.assertEquals(expected, values);
+
+        values.put("platform", "iOS");
+        values.put("resolutionWidth", 640);
+        values.put("isBrandNewUser", null);
+        values.put("lang", "en");
+        expected.put("platform", "iOS");
+        expected.put("resolutionWidth", 640);
+        expected.put("isBrandNewUser", null);
+        expected.put("lang", "en");
+        Assert.assertEquals(expected, values);
+        Assert.assertEquals(expected.hashCode(), values.hashCode());
+        Assert.assertEquals(4, values.size());
+        Assert.assertTrue(values.containsKey("isBrandNewUser"));
+        Assert.assertFalse(values.containsKey("phoneType"));
+        Assert.assertNull(values.get("phoneType"));
+
+        Assert.assertEquals(640, values.put("resolutionWidth", 1080));
+        Assert.assertEquals(1080, values.remove("resolutionWidth"));
+        Assert.assertFalse(values.containsKey("resolutionWidth"));
+        Assert.assertEquals("en", values.remove("lang"));
+        Assert.assertEquals(2, values.size());
+
+        values.clear();
+        Assert.assertTrue(values.isEmpty());
+        Assert.assertFalse(values.containsKey("platform"));
+    }
+
+    @Test
+    public void testValuesOfTheWrongTypeAreRejected() {
+        final Map<String, Object> values = SCHEMA.newValues();
+        try {
+            values.put("resolutionWidth", "640");
+            Assert.fail("a string is not an int");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertFalse(values.containsKey("resolutionWidth"));
+
+        // char is checked by nobody, rule verification uses strings for it
+        values.put("phoneType", "iPhone");
+        values.put("phoneType", 'i');
+    }
+
+    @Test
+    public void testToSlots() {
+        final Map<String, Object> context = Maps.newHashMap();
+        context.put("platform", "iOS");
+        context.put("isBrandNewUser", null);
+        context.put("lang", "en");
+        final Object[] slots = SCHEMA.toSlots(context);
+        Assert.assertEquals(SCHEMA.size(), slots.length);
+        Assert.assertEquals("iOS", slots[SCHEMA.getSlot("platform")]);
+        Assert.assertNull(slots[SCHEMA.getSlot("isBrandNewUser")]);
+        Assert.assertSame(ContextSchema.ABSENT, slots[SCHEMA.getSlot("resolutionWidth")]);
+
+        // contexts from the schema are used as they are
+        final ContextSchema.Values values = SCHEMA.newValues();
+        values.putAll(context);
+        final Object[] valueSlots = SCHEMA.toSlots(values);
+        Assert.assertSame(valueSlots, SCHEMA.toSlots(values));
+        Assert.assertArrayEquals(slots, valueSlots);
+
+        // but not by another schema
+        final ContextSchema other = ContextSchema.of(ImmutableMap.of("platform", "String"));
+        Assert.assertArrayEquals(new Object[] { "iOS" }, other.toSlots(values));
+    }
+}
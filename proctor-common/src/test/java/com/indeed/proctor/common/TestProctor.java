@@ -3,8 +3,12 @@ package com.indeed.proctor.common;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.indeed.proctor.common.model.Allocation;
 import com.indeed.proctor.common.model.Audit;
 import com.indeed.proctor.common.model.ConsumableTestDefinition;
+import com.indeed.proctor.common.model.Range;
+import com.indeed.proctor.common.model.TestBucket;
 import com.indeed.proctor.common.model.TestMatrixArtifact;
 import com.indeed.proctor.common.model.TestType;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -22,6 +26,8 @@ import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -228,6 +234,182 @@ public class TestProctor {
         assertEquals(0, lines.size());
     }
 
+    @Test
+    public void testDetermineTestGroups_linkedTestsShareHash() {
+        final TestMatrixArtifact matrix = new TestMatrixArtifact();
+        final Audit audit = new Audit();
+        audit.setVersion("1");
+        matrix.setAudit(audit);
+        final Map<String, ConsumableTestDefinition> testMap = Maps.newLinkedHashMap();
+        testMap.put("linkedA", createFiftyFiftyTest(TestType.USER_ID, "&linked"));
+        testMap.put("linkedB", createFiftyFiftyTest(TestType.USER_ID, "&linked"));
+        testMap.put("linkedDevice", createFiftyFiftyTest(TestType.DEVICE_ID, "&linked"));
+        testMap.put("legacy", createFiftyFiftyTest(TestType.USER_ID, "legacy"));
+        matrix.setTests(testMap);
+
+        final Proctor proctor = Proctor.construct(matrix, null, RuleEvaluator.FUNCTION_MAPPER);
+        final Map<String, StandardTestChooser> choosers = Maps.newHashMap();
+        for (final Map.Entry<String, ConsumableTestDefinition> entry : testMap.entrySet()) {
+            choosers.put(entry.getKey(), new StandardTestChooser(RuleEvaluator.EXPRESSION_FACTORY, RuleEvaluator.FUNCTION_MAPPER, entry.getKey(), entry.getValue()));
+        }
+
+        final Map<String, Object> context = Collections.emptyMap();
+        for (int i = 0; i < 1000; i++) {
+            final String userId = String.valueOf(i);
+            final String deviceId = "device" + i;
+            final ProctorResult result = proctor.determineTestGroups(
+                    Identifiers.of(TestType.USER_ID, userId, TestType.DEVICE_ID, deviceId),
+                    context, Collections.<String, Integer>emptyMap());
+            assertEquals(4, result.getBuckets().size());
+            assertEquals(choosers.get("linkedA").choose(userId, context), result.getBuckets().get("linkedA"));
+            assertEquals(result.getBuckets().get("linkedA"), result.getBuckets().get("linkedB"));
+            assertEquals(choosers.get("linkedDevice").choose(deviceId, context), result.getBuckets().get("linkedDevice"));
+            assertEquals(choosers.get("legacy").choose(userId, context), result.getBuckets().get("legacy"));
+        }
+    }
+
+    @Test
+    public void testDetermineTestGroups_batchMatchesSingle() {
+        final TestMatrixArtifact matrix = new TestMatrixArtifact();
+        final Audit audit = new Audit();
+        audit.setVersion("1");
+        matrix.setAudit(audit);
+        final Map<String, ConsumableTestDefinition> testMap = Maps.newLinkedHashMap();
+        testMap.put("linkedA", createFiftyFiftyTest(TestType.USER_ID, "&linked"));
+        testMap.put("linkedB", createFiftyFiftyTest(TestType.USER_ID, "&linked"));
+        testMap.put("device", createFiftyFiftyTest(TestType.DEVICE_ID, "device"));
+        final ConsumableTestDefinition whiteListed = createFiftyFiftyTest(TestType.USER_ID, "whitelisted");
+        whiteListed.setWhiteList(Collections.singletonMap("7", whiteListed.getBuckets().get(0)));
+        testMap.put("whitelisted", whiteListed);
+        matrix.setTests(testMap);
+        final Proctor proctor = Proctor.construct(matrix, null, RuleEvaluator.FUNCTION_MAPPER);
+
+        final List<Identifiers> identifiers = Lists.newArrayList();
+        final List<Map<String, Object>> contexts = Lists.newArrayList();
+        for (int i = 0; i < 3000; i++) {
+            if (i % 3 == 0) {
+                identifiers.add(Identifiers.of(TestType.USER_ID, String.valueOf(i)));
+            } else {
+                identifiers.add(Identifiers.of(TestType.USER_ID, String.valueOf(i), TestType.DEVICE_ID, "device" + i));
+            }
+            contexts.add(Collections.<String, Object>singletonMap("row", i));
+        }
+
+        final Map<String, Object> sharedContext = Collections.emptyMap();
+        final BatchProctorResult shared = proctor.determineTestGroups(identifiers, sharedContext);
+        final BatchProctorResult perRow = proctor.determineTestGroups(identifiers, contexts);
+        assertEquals(identifiers.size(), shared.size());
+        assertEquals(identifiers.size(), perRow.size());
+        assertEquals(testMap.keySet(), Sets.newHashSet(shared.getTestNames()));
+        for (int i = 0; i < identifiers.size(); i++) {
+            final ProctorResult single = proctor.determineTestGroups(identifiers.get(i), sharedContext, Collections.<String, Integer>emptyMap());
+            assertEquals(single.getBuckets(), shared.getResult(i).getBuckets());
+            assertEquals(single.getBuckets(), perRow.getResult(i).getBuckets());
+            assertEquals(single.getBuckets().get("device"), shared.getBucket(i, "device"));
+        }
+        assertEquals("inactive", shared.getBucket(7, "whitelisted").getName());
+        assertEquals(null, shared.getBucket(0, "device"));
+    }
+
+    @Test
+    public void testDetermineTestGroups_resultViews() {
+        final TestMatrixArtifact matrix = new TestMatrixArtifact();
+        final Audit audit = new Audit();
+        audit.setVersion("1");
+        matrix.setAudit(audit);
+        final Map<String, ConsumableTestDefinition> testMap = Maps.newLinkedHashMap();
+        testMap.put("zeta", createFiftyFiftyTest(TestType.USER_ID, "zeta"));
+        testMap.put("alpha", createFiftyFiftyTest(TestType.USER_ID, "alpha"));
+        testMap.put("device", createFiftyFiftyTest(TestType.DEVICE_ID, "device"));
+        matrix.setTests(testMap);
+        final Proctor proctor = Proctor.construct(matrix, null, RuleEvaluator.FUNCTION_MAPPER);
+
+        final ProctorResult result = proctor.determineTestGroups(
+                Identifiers.of(TestType.USER_ID, "user"), Collections.<String, Object>emptyMap(), Collections.<String, Integer>emptyMap());
+        final List<String> visited = Lists.newArrayList();
+        result.forEachBucket((testName, bucket) -> {
+            visited.add(testName);
+            assertEquals(bucket, result.getBucket(testName));
+        });
+        assertEquals(Arrays.asList("alpha", "zeta"), visited);
+        assertEquals(null, result.getBucket("device"));
+        assertEquals(null, result.getBucket("missing"));
+        assertEquals("1", result.getTestVersions().get("device"));
+        assertEquals(3, result.getTestVersions().size());
+
+        // the map is sorted and built once; from then on it holds the buckets
+        final Map<String, TestBucket> buckets = result.getBuckets();
+        assertEquals(visited, Lists.newArrayList(buckets.keySet()));
+        assertSame(buckets, result.getBuckets());
+        assertEquals(buckets.get("alpha"), result.getBucket("alpha"));
+        final TestBucket control = testMap.get("device").getBuckets().get(1);
+        buckets.put("device", control);
+        assertEquals(control, result.getBucket("device"));
+        final List<String> revisited = Lists.newArrayList();
+        result.forEachBucket((testName, bucket) -> revisited.add(testName));
+        assertEquals(Arrays.asList("alpha", "device", "zeta"), revisited);
+
+        // setBuckets takes the map as it is
+        final Map<String, TestBucket> replaced = Maps.newHashMap();
+        replaced.put("zeta", control);
+        result.setBuckets(replaced);
+        assertSame(replaced, result.getBuckets());
+        assertEquals(control, result.getBucket("zeta"));
+        assertEquals(null, result.getBucket("alpha"));
+
+        // test versions are the caller's to change
+        result.getTestVersions().put("device", "2");
+        assertEquals("1", result.getTestVersions().get("device"));
+        assertEquals("1", proctor.determineTestGroups(
+                Identifiers.of(TestType.USER_ID, "user"), Collections.<String, Object>emptyMap(), Collections.<String, Integer>emptyMap())
+                .getTestVersions().get("device"));
+    }
+
+    @Test
+    public void testConstruct_reusesUnchangedChoosers() {
+        final Audit audit = new Audit();
+        audit.setVersion("1");
+        final Map<String, ConsumableTestDefinition> testMap = Maps.newHashMap();
+        testMap.put("device", createFiftyFiftyTest(TestType.ANONYMOUS_USER, "device"));
+        testMap.put("user", createFiftyFiftyTest(TestType.AUTHENTICATED_USER, "user"));
+        final TestMatrixArtifact matrix = new TestMatrixArtifact();
+        matrix.setAudit(audit);
+        matrix.setTests(testMap);
+        final Proctor previous = Proctor.construct(matrix, null, RuleEvaluator.FUNCTION_MAPPER);
+
+        final Map<String, ConsumableTestDefinition> changedTestMap = Maps.newHashMap(testMap);
+        changedTestMap.put("user", createFiftyFiftyTest(TestType.AUTHENTICATED_USER, "user"));
+        final TestMatrixArtifact changedMatrix = new TestMatrixArtifact();
+        changedMatrix.setAudit(audit);
+        changedMatrix.setTests(changedTestMap);
+        final Proctor proctor = Proctor.construct(changedMatrix, null, RuleEvaluator.FUNCTION_MAPPER, previous);
+
+        assertSame(previous.getTestChooser("device"), proctor.getTestChooser("device"));
+        assertNotSame(previous.getTestChooser("user"), proctor.getTestChooser("user"));
+        assertSame(changedTestMap.get("user"), proctor.getTestChooser("user").getTestDefinition());
+
+        final Identifiers identifiers = Identifiers.of(TestType.ANONYMOUS_USER, "abc", TestType.AUTHENTICATED_USER, "123");
+        assertEquals(
+                Proctor.construct(changedMatrix, null, RuleEvaluator.FUNCTION_MAPPER)
+                        .determineTestGroups(identifiers, Collections.<String, Object>emptyMap(), Collections.<String, Integer>emptyMap())
+                        .getBuckets(),
+                proctor.determineTestGroups(identifiers, Collections.<String, Object>emptyMap(), Collections.<String, Integer>emptyMap())
+                        .getBuckets());
+    }
+
+    private static ConsumableTestDefinition createFiftyFiftyTest(final TestType testType, final String salt) {
+        final List<TestBucket> buckets = Lists.newArrayList(
+                new TestBucket("inactive", -1, "", null),
+                new TestBucket("control", 0, "", null),
+                new TestBucket("test", 1, "", null));
+        final List<Allocation> allocations = Lists.newArrayList(
+                new Allocation(null, Lists.newArrayList(new Range(-1, 0.0), new Range(0, 0.5), new Range(1, 0.5))));
+        final ConsumableTestDefinition testDefinition = new ConsumableTestDefinition(
+                "1", null, testType, salt, buckets, allocations, Collections.<String, Object>emptyMap(), "");
+        testDefinition.setWhiteList(Collections.<String, TestBucket>emptyMap());
+        return testDefinition;
+    }
+
     // Helper function to get the output from appendTestsNameFiltered
     private List<String> appendTestsNameFiltered_process(Collection<String> names)
     {
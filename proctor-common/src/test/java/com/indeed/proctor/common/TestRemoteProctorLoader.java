@@ -0,0 +1,70 @@
+package com.indeed.proctor.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class TestRemoteProctorLoader {
+    private static final int POSITIONS = 10000;
+
+    @Test
+    public void testAllocate_matchesRoundBasedLayout() {
+        assertSameLayout();
+        assertSameLayout(10000);
+        assertSameLayout(5000, 5000);
+        assertSameLayout(3333, 3333, 3334);
+        assertSameLayout(100, 200, 300, 400);
+        assertSameLayout(0, 2500, 0, 7500);
+        assertSameLayout(1, 1, 1, 1, 1, 1, 9994);
+        assertSameLayout(9000, 500, 250, 125, 60, 30, 15, 10, 5, 5);
+        // partial traffic leaves the rest inactive
+        assertSameLayout(1000, 1000, 1000);
+        // ratios adding up to more than 100% fill what they can
+        assertSameLayout(8000, 8000, 8000);
+    }
+
+    @Test
+    public void testAllocate_matchesRoundBasedLayoutForRandomQuotas() {
+        final Random random = new Random(42);
+        for (int iteration = 0; iteration < 200; iteration++) {
+            final long[] quotas = new long[1 + random.nextInt(12)];
+            long left = POSITIONS;
+            for (int i = 0; i < quotas.length; i++) {
+                quotas[i] = left == 0 ? 0 : random.nextInt((int) left + 1);
+                left -= quotas[i];
+            }
+            assertSameLayout(quotas);
+        }
+    }
+
+    private static void assertSameLayout(final long... quotas) {
+        Assert.assertArrayEquals(Arrays.toString(quotas),
+                allocateRoundByRound(quotas, POSITIONS), RemoteProctorLoader.allocate(quotas, POSITIONS));
+    }
+
+    /**
+     * The original allocation: every round, each bucket scans all positions of its column for free ones.
+     */
+    private static int[] allocateRoundByRound(final long[] quotas, final int positions) {
+        final int totalActiveBucket = quotas.length;
+        final int[] bucketValues = new int[positions];
+        Arrays.fill(bucketValues, -1);
+        final long[] remaining = quotas.clone();
+        for (int round = 0; round < totalActiveBucket; round++) {
+            for (int value = 0; value < totalActiveBucket; value++) {
+                final int bucketIndex = (value + round) % totalActiveBucket;
+                long count = 0;
+                for (int i = 0; i < positions && count < remaining[value]; i++) {
+                    if (i % totalActiveBucket == bucketIndex && bucketValues[i] == -1) {
+                        bucketValues[i] = value;
+                        count++;
+                    }
+                }
+                remaining[value] -= count;
+            }
+        }
+        return bucketValues;
+    }
+}
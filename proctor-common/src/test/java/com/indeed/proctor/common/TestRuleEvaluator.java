@@ -1,5 +1,6 @@
 package com.indeed.proctor.common;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.indeed.util.core.ReleaseVersion;
 import com.google.common.collect.Lists;
@@ -93,6 +94,28 @@ public class TestRuleEvaluator {
         }
     }
 
+    @Test
+    public void testHdidLastDigitMatchesHdidToDigit() {
+        final String[] deviceIds = {"6c2ca739d48197332e2fef404811775acbc7ead6", "881abe54-6d67-43c8-a894-ede986673620",
+                "0768C3E8B7372379C70E26BD7EBB5C75DB8303D3", "1234567", "5", "", "not-a-hex-id", null};
+        for (final String deviceId : deviceIds) {
+            final Map<String, Object> inputContext = Maps.newHashMap();
+            inputContext.put("deviceId", deviceId);
+            for (int digit = 0; digit < 10; digit++) {
+                final String expected = "${ proctor:endsWith( proctor:hdidToDigit(deviceId), '" + digit + "' ) }";
+                final String rule = "${ proctor:hdidLastDigit(deviceId) == " + digit + " }";
+                Assert.assertEquals("rule '" + rule + "' for " + inputContext,
+                        ruleEvaluator.evaluateBooleanRule(expected, inputContext),
+                        ruleEvaluator.evaluateBooleanRule(rule, inputContext));
+            }
+        }
+        Assert.assertEquals(-1, ProctorRuleFunctions.hdidLastDigit(""));
+        Assert.assertEquals(-1, ProctorRuleFunctions.hdidLastDigit("xyz"));
+        Assert.assertEquals("05", ProctorRuleFunctions.hdidToDigit("5"));
+        Assert.assertEquals(5, ProctorRuleFunctions.hdidLastDigit("5"));
+        Assert.assertEquals(String.valueOf(0xffffffffL), ProctorRuleFunctions.hdidToDigit("ab-FF-FF-FF-FF"));
+    }
+
     @Test
     public void testNullRule() {
         Assert.assertTrue("null rule should be true", ruleEvaluator.evaluateBooleanRule(null, Collections.<String, Object>emptyMap()));
@@ -165,6 +188,126 @@ public class TestRuleEvaluator {
         }
     }
 
+    @Test
+    public void testCompiledRulesMatchUncompiled() {
+        final Map<String, Object> testConstants = Collections.<String, Object>singletonMap("LANGUAGES_ENABLED", Lists.newArrayList("en", "fr", "de"));
+        final RuleEvaluator compiledEvaluator = new RuleEvaluator(RuleEvaluator.EXPRESSION_FACTORY, RuleEvaluator.FUNCTION_MAPPER, testConstants);
+        final String[] rules = {
+                "${proctor:contains(LANGUAGES_ENABLED, lang)}",
+                "${fn:startsWith(lang, 'en')}",
+                "${indeed:contains(LANGUAGES_ENABLED, lang) && resolutionWidth > 640}",
+                "${empty nothing}",
+        };
+        for (final String rule : rules) {
+            compiledEvaluator.compileRule(rule);
+        }
+
+        for (final String lang : new String[] { "en", "en_US", "it" }) {
+            for (final Integer width : new Integer[] { 320, 1080 }) {
+                final Map<String, Object> values = Maps.newHashMap();
+                values.put("lang", lang);
+                values.put("resolutionWidth", width);
+                values.put("nothing", null);
+                for (final String rule : rules) {
+                    Assert.assertEquals("rule '" + rule + "' for " + values,
+                            ruleEvaluator.evaluateBooleanRule(rule, values),
+                            compiledEvaluator.evaluateBooleanRule(rule, values));
+                }
+            }
+        }
+
+        // constants take precedence over context values on both paths
+        final Map<String, Object> shadowing = Maps.newHashMap();
+        shadowing.put("lang", "en");
+        shadowing.put("LANGUAGES_ENABLED", Lists.newArrayList("it"));
+        Assert.assertTrue(compiledEvaluator.evaluateBooleanRule(rules[0], shadowing));
+        Assert.assertTrue(ruleEvaluator.evaluateBooleanRule(rules[0], shadowing));
+
+        // an unknown variable still fails evaluation
+        try {
+            compiledEvaluator.evaluateBooleanRule(rules[0], Collections.<String, Object>emptyMap());
+            Assert.fail("missing variable should fail evaluation");
+        } catch (final RuntimeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBindingIsSharedAcrossRulesAndEvaluators() {
+        final Map<String, Object> testConstants = Collections.<String, Object>singletonMap("LANGUAGES_ENABLED", Lists.newArrayList("en", "fr"));
+        final RuleEvaluator compiledEvaluator = new RuleEvaluator(RuleEvaluator.EXPRESSION_FACTORY, RuleEvaluator.FUNCTION_MAPPER, testConstants);
+        final RuleEvaluator uncompiledEvaluator = new RuleEvaluator(RuleEvaluator.EXPRESSION_FACTORY, RuleEvaluator.FUNCTION_MAPPER, testConstants);
+        final String[] rules = {
+                "${proctor:contains(LANGUAGES_ENABLED, lang)}",
+                "${lang == 'en' && resolutionWidth > 640}",
+                "${empty nothing}",
+        };
+        for (final String rule : rules) {
+            compiledEvaluator.compileRule(rule);
+        }
+
+        final Map<String, Object> values = Maps.newHashMap();
+        values.put("lang", "en");
+        values.put("resolutionWidth", 1080);
+        values.put("nothing", null);
+        final RuleEvaluator.Binding binding = new RuleEvaluator.Binding(values);
+        for (int i = 0; i < 2; i++) {
+            for (final String rule : rules) {
+                final boolean expected = ruleEvaluator.evaluateBooleanRule(rule, values);
+                Assert.assertEquals("rule '" + rule + "'", expected, compiledEvaluator.evaluateBooleanRule(rule, binding));
+                Assert.assertEquals("rule '" + rule + "'", expected, uncompiledEvaluator.evaluateBooleanRule(rule, binding));
+            }
+        }
+
+        // a variable the rule doesn't know still fails evaluation
+        try {
+            uncompiledEvaluator.evaluateBooleanRule("${missing == 1}", binding);
+            Assert.fail("missing variable should fail evaluation");
+        } catch (final RuntimeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRulesCompiledAgainstSchemaMatchUncompiled() {
+        // the test constant takes precedence over the variable of the same name
+        final ContextSchema schema = ContextSchema.of(ImmutableMap.of("lang", "String", "resolutionWidth", "int", "LANGUAGES_ENABLED", "String"));
+        final Map<String, Object> testConstants = Collections.<String, Object>singletonMap("LANGUAGES_ENABLED", Lists.newArrayList("en", "fr", "de"));
+        final RuleEvaluator schemaEvaluator = new RuleEvaluator(RuleEvaluator.EXPRESSION_FACTORY, RuleEvaluator.FUNCTION_MAPPER, testConstants, schema);
+        final String[] rules = {
+                "${proctor:contains(LANGUAGES_ENABLED, lang)}",
+                "${lang == 'en' && resolutionWidth > 640}",
+                "${empty nothing}",
+        };
+        for (final String rule : rules) {
+            Assert.assertTrue(schemaEvaluator.compileRule(rule));
+        }
+
+        for (final String lang : new String[] { "en", "it" }) {
+            for (final Integer width : new Integer[] { 320, 1080 }) {
+                final Map<String, Object> values = Maps.newHashMap();
+                values.put("lang", lang);
+                values.put("resolutionWidth", width);
+                values.put("nothing", null);
+                final ContextSchema.Values schemaValues = schema.newValues();
+                schemaValues.putAll(values);
+                for (final String rule : rules) {
+                    final boolean expected = ruleEvaluator.evaluateBooleanRule(rule, values);
+                    Assert.assertEquals("rule '" + rule + "' for " + values, expected, schemaEvaluator.evaluateBooleanRule(rule, values));
+                    Assert.assertEquals("rule '" + rule + "' for " + values, expected, schemaEvaluator.evaluateBooleanRule(rule, schemaValues));
+                }
+            }
+        }
+
+        // a declared variable the context doesn't have still fails evaluation
+        try {
+            schemaEvaluator.evaluateBooleanRule(rules[1], Collections.<String, Object>singletonMap("lang", "en"));
+            Assert.fail("missing variable should fail evaluation");
+        } catch (final RuntimeException e) {
+            // expected
+        }
+    }
+
     @Test
     public void testRegexMatches() {
         final String rule = "${proctor:matches(value, '^#[0-9a-fA-F]{3,6}$')}";
@@ -182,6 +325,30 @@ public class TestRuleEvaluator {
         }
     }
 
+    @Test
+    public void testCompileRuleCachesConstantArguments() {
+        final String rule = "${proctor:matches(value, '^[a-c]+$') && proctor:versionInRange(version, '3.1.0.0', '3.4.0.0')"
+                + " && version == indeed:version('3.2.1.x') && proctor:matches('abc', pattern)}";
+        ruleEvaluator.compileRule(rule);
+        Assert.assertTrue(ProctorRuleFunctions.isConstantCached("^[a-c]+$"));
+        Assert.assertTrue(ProctorRuleFunctions.isConstantCached("3.1.0.0"));
+        Assert.assertTrue(ProctorRuleFunctions.isConstantCached("3.4.0.0"));
+        Assert.assertTrue(ProctorRuleFunctions.isConstantCached("3.2.1.x"));
+        // the value being matched is not a pattern
+        Assert.assertFalse(ProctorRuleFunctions.isConstantCached("abc"));
+
+        final Map<String, Object> values = Maps.newHashMap();
+        values.put("value", "abcba");
+        values.put("version", ReleaseVersion.fromString("3.2.1.0"));
+        values.put("pattern", "a.c");
+        Assert.assertTrue(ruleEvaluator.evaluateBooleanRule(rule, values));
+        values.put("pattern", "a.d");
+        Assert.assertFalse(ruleEvaluator.evaluateBooleanRule(rule, values));
+        values.put("pattern", "a.c");
+        values.put("version", ReleaseVersion.fromString("3.4.0.0"));
+        Assert.assertFalse(ruleEvaluator.evaluateBooleanRule(rule, values));
+    }
+
     @Test
     public void testVersionLessThanWildCard() {
         final String rule = "${version < proctor:version('1.2.x')}";
@@ -0,0 +1,110 @@
+package com.indeed.proctor.common;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.indeed.proctor.common.model.ConsumableTestDefinition;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class TestRuleIndex {
+    @Test
+    public void testSplitTopLevelConjunction() {
+        Assert.assertEquals(Arrays.asList("platform=='iOS'", "resolutionWidth>640"),
+                RuleIndex.splitTopLevelConjunction("platform=='iOS'&&resolutionWidth>640"));
+        Assert.assertEquals(Arrays.asList("proctor:contains(__COUNTRIES, country)", "lang == 'a&&b'"),
+                RuleIndex.splitTopLevelConjunction("proctor:contains(__COUNTRIES, country) && lang == 'a&&b'"));
+        Assert.assertEquals(Arrays.asList("(a && b)", "c"),
+                RuleIndex.splitTopLevelConjunction("(a && b) && c"));
+        // && binds tighter than ||, so these can't be split
+        Assert.assertEquals(Collections.singletonList("a && b || c"),
+                RuleIndex.splitTopLevelConjunction("a && b || c"));
+        Assert.assertEquals(Collections.singletonList("a && b or c"),
+                RuleIndex.splitTopLevelConjunction("a && b or c"));
+        Assert.assertEquals(Collections.singletonList("a && b ? c : d"),
+                RuleIndex.splitTopLevelConjunction("a && b ? c : d"));
+        Assert.assertEquals(Arrays.asList("floor", "door"),
+                RuleIndex.splitTopLevelConjunction("floor && door"));
+        // neither can operators that bind looser than &&
+        Assert.assertEquals(Collections.singletonList("a && b; c"),
+                RuleIndex.splitTopLevelConjunction("a && b; c"));
+        Assert.assertEquals(Collections.singletonList("x = a && b"),
+                RuleIndex.splitTopLevelConjunction("x = a && b"));
+        Assert.assertEquals(Collections.singletonList("x -> a && b"),
+                RuleIndex.splitTopLevelConjunction("x -> a && b"));
+        Assert.assertEquals(Arrays.asList("{a && b}.contains(c)", "d <= 1", "e != 'f'"),
+                RuleIndex.splitTopLevelConjunction("{a && b}.contains(c) && d <= 1 && e != 'f'"));
+    }
+
+    @Test
+    public void testFindExcludedTests() {
+        final RuleIndex ruleIndex = RuleIndex.build(Lists.newArrayList(
+                createTestDefinition("${false}"),
+                createTestDefinition("${platform=='iOS'&&resolutionWidth>640}"),
+                createTestDefinition("${'android' eq platform}"),
+                createTestDefinition("${isBrandNewUser}"),
+                createTestDefinition("${isBrandNewUser||platform=='iOS'}"),
+                createTestDefinition("${proctor:endsWith(userId, '1')}"),
+                createTestDefinition(null)
+        ));
+
+        final Map<String, Object> context = Maps.newHashMap();
+        context.put("platform", "iOS");
+        context.put("isBrandNewUser", true);
+        assertExcluded(ruleIndex.findExcludedTests(context), 0, 2);
+
+        context.put("platform", "android");
+        context.put("isBrandNewUser", false);
+        assertExcluded(ruleIndex.findExcludedTests(context), 0, 1, 3);
+
+        context.put("platform", "windows");
+        context.put("isBrandNewUser", "TRUE");
+        assertExcluded(ruleIndex.findExcludedTests(context), 0, 1, 2);
+
+        context.put("platform", null);
+        context.put("isBrandNewUser", null);
+        assertExcluded(ruleIndex.findExcludedTests(context), 0, 1, 2, 3);
+
+        // values EL would coerce are left to the rule, and so are missing variables
+        context.put("platform", 1);
+        context.put("isBrandNewUser", 0);
+        assertExcluded(ruleIndex.findExcludedTests(context), 0);
+        assertExcluded(ruleIndex.findExcludedTests(Collections.<String, Object>emptyMap()), 0);
+    }
+
+    @Test
+    public void testConstantsAreNotIndexed() {
+        final ConsumableTestDefinition testDefinition = createTestDefinition("${platform=='iOS'}");
+        testDefinition.setConstants(Collections.<String, Object>singletonMap("platform", "iOS"));
+        final RuleIndex ruleIndex = RuleIndex.build(Collections.singletonList(testDefinition));
+
+        Assert.assertNull(ruleIndex.findExcludedTests(Collections.<String, Object>singletonMap("platform", "android")));
+    }
+
+    private static void assertExcluded(final boolean[] excluded, final int... expected) {
+        final List<Integer> actual = Lists.newArrayList();
+        if (excluded != null) {
+            for (int i = 0; i < excluded.length; i++) {
+                if (excluded[i]) {
+                    actual.add(i);
+                }
+            }
+        }
+        final List<Integer> expectedList = Lists.newArrayList();
+        for (final int test : expected) {
+            expectedList.add(test);
+        }
+        Assert.assertEquals(expectedList, actual);
+    }
+
+    private static ConsumableTestDefinition createTestDefinition(final String rule) {
+        final ConsumableTestDefinition testDefinition = new ConsumableTestDefinition();
+        testDefinition.setRule(rule);
+        testDefinition.setConstants(Collections.<String, Object>emptyMap());
+        return testDefinition;
+    }
+}
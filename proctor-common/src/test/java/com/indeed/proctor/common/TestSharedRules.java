@@ -0,0 +1,108 @@
+package com.indeed.proctor.common;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.indeed.proctor.common.model.Allocation;
+import com.indeed.proctor.common.model.ConsumableTestDefinition;
+import com.indeed.proctor.common.model.Range;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class TestSharedRules {
+    @Test
+    public void testSplitTopLevelDisjunction() {
+        Assert.assertEquals(Arrays.asList("platform=='iOS'&&resolutionWidth>640", "isBrandNewUser"),
+                SharedRules.splitTopLevelDisjunction("platform=='iOS'&&resolutionWidth>640||isBrandNewUser"));
+        Assert.assertEquals(Arrays.asList("a", "b", "c"),
+                SharedRules.splitTopLevelDisjunction("a || b or c"));
+        Assert.assertEquals(Arrays.asList("proctor:contains(__COUNTRIES, country)", "lang == 'a||b'"),
+                SharedRules.splitTopLevelDisjunction("proctor:contains(__COUNTRIES, country) || lang == 'a||b'"));
+        Assert.assertEquals(Arrays.asList("(a || b)", "c"),
+                SharedRules.splitTopLevelDisjunction("(a || b) || c"));
+        Assert.assertEquals(Arrays.asList("color", "door"),
+                SharedRules.splitTopLevelDisjunction("color || door"));
+        Assert.assertEquals(Arrays.asList("a != b", "c >= d"),
+                SharedRules.splitTopLevelDisjunction("a != b || c >= d"));
+        // operators binding looser than || keep the rule whole
+        Assert.assertEquals(Collections.singletonList("a || b ? c : d"),
+                SharedRules.splitTopLevelDisjunction("a || b ? c : d"));
+        Assert.assertEquals(Collections.singletonList("x = a || b"),
+                SharedRules.splitTopLevelDisjunction("x = a || b"));
+        Assert.assertEquals(Collections.singletonList("a || b; c"),
+                SharedRules.splitTopLevelDisjunction("a || b; c"));
+    }
+
+    @Test
+    public void testTermsAreSharedBetweenTests() {
+        final SharedRules sharedRules = SharedRules.build(Lists.newArrayList(
+                createTestDefinition("${isBrandNewUser || platform == 'iOS' && resolutionWidth > 640}", "${true}"),
+                createTestDefinition("${platform == 'iOS' && resolutionWidth > 640}", "${proctor:endsWith(userId, '1')}"),
+                createTestDefinition("${isBrandNewUser}", "${proctor:endsWith(userId, '1') || isBrandNewUser}")
+        ), RuleEvaluator.FUNCTION_MAPPER);
+        Assert.assertEquals(4, sharedRules.getTermCount());
+
+        final Map<String, Object> values = Maps.newHashMap();
+        values.put("isBrandNewUser", false);
+        values.put("platform", "iOS");
+        values.put("resolutionWidth", 750);
+        values.put("userId", "1");
+        final SharedRules.Evaluation evaluation = sharedRules.newEvaluation(values);
+        Assert.assertNotNull(evaluation);
+        Assert.assertEquals(Boolean.TRUE, evaluation.evaluate("${isBrandNewUser || platform == 'iOS' && resolutionWidth > 640}"));
+        Assert.assertEquals(Boolean.FALSE, evaluation.evaluate("${isBrandNewUser}"));
+        Assert.assertEquals(Boolean.TRUE, evaluation.evaluate("${proctor:endsWith(userId, '1') || isBrandNewUser}"));
+        // trivial and unknown rules are left to the tests
+        Assert.assertNull(evaluation.evaluate("${true}"));
+        Assert.assertNull(evaluation.evaluate("${somethingElse}"));
+        Assert.assertNull(evaluation.evaluate(null));
+    }
+
+    @Test
+    public void testRulesUsingConstantsAreNotShared() {
+        final ConsumableTestDefinition withConstants = createTestDefinition("${platform == PLATFORM}", "${isBrandNewUser}");
+        withConstants.setConstants(Collections.<String, Object>singletonMap("PLATFORM", "iOS"));
+        final SharedRules sharedRules = SharedRules.build(Lists.newArrayList(
+                createTestDefinition("${platform == PLATFORM}", "${isBrandNewUser}"),
+                withConstants
+        ), RuleEvaluator.FUNCTION_MAPPER);
+
+        final SharedRules.Evaluation evaluation = sharedRules.newEvaluation(Collections.<String, Object>singletonMap("isBrandNewUser", true));
+        Assert.assertNotNull(evaluation);
+        Assert.assertNull(evaluation.evaluate("${platform == PLATFORM}"));
+        Assert.assertEquals(Boolean.TRUE, evaluation.evaluate("${isBrandNewUser}"));
+    }
+
+    @Test
+    public void testFailuresAreRememberedPerTerm() {
+        final SharedRules sharedRules = SharedRules.build(Lists.newArrayList(
+                createTestDefinition("${isBrandNewUser || missing}", null),
+                createTestDefinition("${missing}", null)
+        ), RuleEvaluator.FUNCTION_MAPPER);
+        final SharedRules.Evaluation evaluation = sharedRules.newEvaluation(Collections.<String, Object>singletonMap("isBrandNewUser", true));
+        Assert.assertNotNull(evaluation);
+        // short-circuits before the missing variable, like the whole rule would
+        Assert.assertEquals(Boolean.TRUE, evaluation.evaluate("${isBrandNewUser || missing}"));
+        for (int i = 0; i < 2; i++) {
+            try {
+                evaluation.evaluate("${missing}");
+                Assert.fail("missing variable should fail evaluation");
+            } catch (final RuntimeException e) {
+                // expected
+            }
+        }
+    }
+
+    private static ConsumableTestDefinition createTestDefinition(final String rule, final String allocationRule) {
+        final ConsumableTestDefinition testDefinition = new ConsumableTestDefinition();
+        testDefinition.setRule(rule);
+        testDefinition.setConstants(Collections.<String, Object>emptyMap());
+        final List<Allocation> allocations = Lists.newArrayList(new Allocation(allocationRule, Collections.singletonList(new Range(0, 1))));
+        testDefinition.setAllocations(allocations);
+        return testDefinition;
+    }
+}
@@ -1,5 +1,7 @@
 package com.indeed.proctor.common;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.indeed.proctor.common.model.Allocation;
@@ -15,9 +17,12 @@ import org.junit.Test;
 
 import javax.el.ExpressionFactory;
 import javax.el.FunctionMapper;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -258,6 +263,90 @@ public class TestStandardTestChooser {
         EasyMock.verify(ruleEvaluator);
     }
 
+    @Test
+    public void testHashMatchesReferenceMd5() {
+        final String longIdentifier = Strings.repeat("0123456789abcdef", 20);
+        final String[] identifiers = {
+                "", "1", "6c2ca739d48197332e2fef404811775acbc7ead6", longIdentifier,
+                "caf\u00e9", "\u8bbe\u5907", "\ud83d\ude00emoji", "unpaired\ud83d", "\ude00unpaired", "\ud83d\ud83d\ude00",
+        };
+        for (final String salt : new String[] { testName, "&" + testName, longIdentifier }) {
+            testDefinition.setSalt(salt);
+            final TestRangeSelector selector = new TestRangeSelector(expressionFactory, functionMapper, testName, testDefinition);
+            final StandardTestChooser.Hasher hasher = StandardTestChooser.newHasherFor(selector);
+            final String saltPrefix = salt.startsWith("&") ? salt : testName + "|" + salt;
+            for (final String identifier : identifiers) {
+                final MessageDigest md = ProctorUtils.createMessageDigest();
+                md.update(saltPrefix.getBytes(Charsets.UTF_8));
+                md.update(identifier.getBytes(Charsets.UTF_8));
+                final int expected = ByteBuffer.wrap(md.digest(), 12, 4).getInt();
+                assertEquals("hash of '" + identifier + "' with salt " + salt, expected, hasher.hash(identifier));
+            }
+        }
+    }
+
+    @Test
+    public void testBucketLookupMatchesLinearScan() {
+        final Random random = new Random(42);
+        final TestBucket[] choices = INACTIVE_CONTROL_TEST_BUCKETS.toArray(new TestBucket[0]);
+
+        // interleaved 10,000-range layout as produced by RemoteProctorLoader, plus zero-length ranges
+        final int numRanges = 10000;
+        final List<Range> ranges = Lists.newArrayList();
+        for (int i = 0; i < numRanges; i++) {
+            ranges.add(new Range(i % 3 == 0 ? -1 : i % 2, (i % 7 == 0) ? 0.0 : 1.0));
+        }
+        double total = 0;
+        for (final Range range : ranges) {
+            total += range.getLength();
+        }
+        for (final Range range : ranges) {
+            range.setLength(range.getLength() / total);
+        }
+        final int[] cutoffs = new int[numRanges - 1];
+        final TestBucket[] buckets = new TestBucket[numRanges];
+        double bucketTotal = 0;
+        for (int i = 0; i < numRanges; i++) {
+            bucketTotal += ranges.get(i).getLength();
+            if (i < cutoffs.length) {
+                cutoffs[i] = (int) (Integer.MIN_VALUE + bucketTotal * Proctor.INT_RANGE);
+            }
+            buckets[i] = choices[ranges.get(i).getBucketValue() + 1];
+        }
+        assertLookupMatchesLinearScan(cutoffs, buckets, random);
+
+        // contiguous ranges of the same bucket are coalesced
+        final int[] contiguousCutoffs = { -100, 0, 0, 100, 200 };
+        final TestBucket[] contiguousBuckets = { choices[0], choices[1], choices[1], choices[1], choices[2], choices[2] };
+        Assert.assertEquals(3, StandardTestChooser.BucketLookup.create(contiguousCutoffs, contiguousBuckets).size());
+        assertLookupMatchesLinearScan(contiguousCutoffs, contiguousBuckets, random);
+
+        // unsorted cutoffs (negative range lengths) keep the linear scan
+        final int[] unsortedCutoffs = { 100, -100, 200 };
+        final TestBucket[] unsortedBuckets = { choices[0], choices[1], choices[2], choices[1] };
+        assertLookupMatchesLinearScan(unsortedCutoffs, unsortedBuckets, random);
+
+        assertLookupMatchesLinearScan(new int[0], new TestBucket[] { choices[2] }, random);
+    }
+
+    private static void assertLookupMatchesLinearScan(final int[] cutoffs, final TestBucket[] buckets, final Random random) {
+        final StandardTestChooser.BucketLookup lookup = StandardTestChooser.BucketLookup.create(cutoffs, buckets);
+        final List<Integer> values = Lists.newArrayList(Integer.MIN_VALUE, Integer.MIN_VALUE + 1, -1, 0, 1, Integer.MAX_VALUE - 1, Integer.MAX_VALUE);
+        for (final int cutoff : cutoffs) {
+            values.add(cutoff - 1);
+            values.add(cutoff);
+            values.add(cutoff + 1);
+        }
+        for (int i = 0; i < 100000; i++) {
+            values.add(random.nextInt());
+        }
+        for (final int value : values) {
+            int i;
+            for (i = 0; i < cutoffs.length && value > cutoffs[i]; i++) { /* intentionally empty */ }
+            Assert.assertSame("bucket for hash " + value, buckets[i], lookup.choose(value));
+        }
+    }
+
     private StandardTestChooser newChooser() {
         return new StandardTestChooser(
                 expressionFactory,
@@ -0,0 +1,84 @@
+package com.indeed.proctor.common.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestRangeList {
+    @Test
+    public void testOf_storesRuns() {
+        final int[] bucketValues = {-1, -1, 0, 1, 1, 1, 0, -1};
+        final RangeList ranges = RangeList.of(bucketValues, 0.125);
+        assertEquals(5, ranges.getRunCount());
+        assertEquals(bucketValues.length, ranges.size());
+        for (int i = 0; i < bucketValues.length; i++) {
+            assertEquals(bucketValues[i], ranges.get(i).getBucketValue());
+            assertEquals(0.125, ranges.get(i).getLength(), 0);
+        }
+        assertRangesEqual(ranges, Lists.newArrayList(ranges));
+    }
+
+    @Test
+    public void testCopyOf_keepsEveryRange() {
+        final List<Range> expected = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            expected.add(new Range(i % 3 == 0 ? -1 : i % 2, (i % 7 == 0) ? 0.0 : 1.0 / 1000));
+        }
+        final RangeList ranges = RangeList.copyOf(expected);
+        assertRangesEqual(expected, ranges);
+        assertSame(ranges, RangeList.copyOf(ranges));
+
+        final RangeList uniform = RangeList.copyOf(Collections.nCopies(10000, new Range(0, 0.0001)));
+        assertEquals(1, uniform.getRunCount());
+        assertEquals(10000, uniform.size());
+        assertTrue(RangeList.copyOf(Collections.<Range>emptyList()).isEmpty());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReadOnly() {
+        RangeList.of(new int[] {0, 1}, 0.5).add(new Range(0, 0.5));
+    }
+
+    @Test
+    public void testJackson_verboseRoundTrip() throws IOException {
+        final ObjectMapper objectMapper = new ObjectMapper();
+        final int[] bucketValues = new int[10000];
+        final List<Range> verbose = Lists.newArrayList();
+        for (int i = 0; i < bucketValues.length; i++) {
+            bucketValues[i] = i % 3 - 1;
+            verbose.add(new Range(bucketValues[i], 0.0001));
+        }
+        final String json = objectMapper.writeValueAsString(new Allocation("${true}", RangeList.of(bucketValues, 0.0001)));
+        assertEquals(objectMapper.writeValueAsString(new Allocation("${true}", verbose)), json);
+
+        // whoever reads the JSON gets ordinary ranges they can edit
+        final Allocation allocation = objectMapper.readValue(json, Allocation.class);
+        assertFalse(allocation.getRanges() instanceof RangeList);
+        assertRangesEqual(verbose, allocation.getRanges());
+        allocation.getRanges().get(0).setLength(0.5);
+        assertEquals(0.5, allocation.getRanges().get(0).getLength(), 0);
+    }
+
+    private static void assertRangesEqual(final List<Range> expected, final List<Range> actual) {
+        assertEquals(expected.size(), actual.size());
+        final Iterator<Range> iterator = actual.iterator();
+        for (int i = 0; i < expected.size(); i++) {
+            final Range range = iterator.next();
+            assertEquals(expected.get(i).getBucketValue(), range.getBucketValue());
+            assertEquals(expected.get(i).getLength(), range.getLength(), 0);
+            assertEquals(expected.get(i).getBucketValue(), actual.get(i).getBucketValue());
+            assertEquals(expected.get(i).getLength(), actual.get(i).getLength(), 0);
+        }
+        assertFalse(iterator.hasNext());
+    }
+}
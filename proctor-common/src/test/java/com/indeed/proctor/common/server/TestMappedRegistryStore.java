@@ -0,0 +1,135 @@
+package com.indeed.proctor.common.server;
+
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class TestMappedRegistryStore {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        final File path = temporaryFolder.newFile("registry.dat");
+        try (MappedRegistryStore store = new MappedRegistryStore(path, 1000)) {
+            Assert.assertNull(store.get("device"));
+
+            Assert.assertTrue(store.put("device", bytes("first")));
+            Assert.assertArrayEquals(bytes("first"), store.get("device"));
+
+            Assert.assertTrue(store.put("device", bytes("second")));
+            Assert.assertArrayEquals(bytes("second"), store.get("device"));
+
+            Assert.assertTrue(store.put("other", new byte[0]));
+            Assert.assertArrayEquals(new byte[0], store.get("other"));
+            Assert.assertNull(store.get("devic"));
+        }
+
+        // reopening the file keeps what was written
+        try (MappedRegistryStore store = new MappedRegistryStore(path, 1000)) {
+            Assert.assertArrayEquals(bytes("second"), store.get("device"));
+            Assert.assertArrayEquals(new byte[0], store.get("other"));
+        }
+    }
+
+    @Test
+    public void testRejectedPuts() throws IOException {
+        try (MappedRegistryStore store = new MappedRegistryStore(temporaryFolder.newFile("registry.dat"), 1)) {
+            Assert.assertFalse(store.put("", bytes("value")));
+            Assert.assertFalse(store.put(Strings.repeat("d", 256), bytes("value")));
+            Assert.assertFalse(store.put("device", new byte[MappedRegistryStore.MAX_ENTRY_SIZE]));
+            Assert.assertTrue(store.put("device", new byte[MappedRegistryStore.MAX_ENTRY_SIZE - "device".length()]));
+            Assert.assertEquals(MappedRegistryStore.MAX_ENTRY_SIZE - "device".length(), store.get("device").length);
+        }
+
+        try (MappedRegistryStore store = new MappedRegistryStore(temporaryFolder.newFile("full.dat"), 1)) {
+            // a single region: everything fits until its slots run out
+            for (int i = 0; i < MappedRegistryStore.REGION_SLOTS; i++) {
+                Assert.assertTrue(store.put("device" + i, bytes(String.valueOf(i))));
+            }
+            Assert.assertFalse(store.put("one too many", bytes("value")));
+            for (int i = 0; i < MappedRegistryStore.REGION_SLOTS; i++) {
+                Assert.assertArrayEquals(bytes(String.valueOf(i)), store.get("device" + i));
+            }
+            // a full region still takes overwrites that fit where the entry is
+            for (int i = 0; i < MappedRegistryStore.REGION_SLOTS; i++) {
+                Assert.assertTrue(store.put("device" + i, bytes("value" + i)));
+            }
+            Assert.assertArrayEquals(bytes("value7"), store.get("device7"));
+            Assert.assertFalse(store.put("device7", new byte[MappedRegistryStore.SLOT_SIZE]));
+            Assert.assertArrayEquals(bytes("value7"), store.get("device7"));
+        }
+    }
+
+    @Test
+    public void testEntriesSpanningSlots() throws IOException {
+        try (MappedRegistryStore store = new MappedRegistryStore(temporaryFolder.newFile("registry.dat"), 1)) {
+            final byte[] large = new byte[MappedRegistryStore.SLOT_SIZE * 5];
+            for (int i = 0; i < large.length; i++) {
+                large[i] = (byte) i;
+            }
+            for (int i = 0; i < 100; i++) {
+                Assert.assertTrue(store.put("device" + i, bytes(String.valueOf(i))));
+            }
+            Assert.assertTrue(store.put("device", large));
+            Assert.assertArrayEquals(large, store.get("device"));
+            Assert.assertTrue(store.put("device", bytes("small")));
+            Assert.assertArrayEquals(bytes("small"), store.get("device"));
+            Assert.assertTrue(store.put("device", large));
+            Assert.assertArrayEquals(large, store.get("device"));
+            for (int i = 0; i < 100; i++) {
+                Assert.assertArrayEquals(bytes(String.valueOf(i)), store.get("device" + i));
+            }
+        }
+    }
+
+    @Test
+    public void testInterruptedOverwrite() throws IOException {
+        final File path = temporaryFolder.newFile("registry.dat");
+        try (MappedRegistryStore store = new MappedRegistryStore(path, 1)) {
+            Assert.assertTrue(store.put("device", bytes("first")));
+            Assert.assertTrue(store.put("device", bytes("second")));
+        }
+        final byte[] content = Files.toByteArray(path);
+        final int first = indexOf(content, bytes("first"));
+        final int second = indexOf(content, bytes("second"));
+
+        // stopped before the old entry was dropped: the new one wins
+        final byte live = content[second - second % MappedRegistryStore.SLOT_SIZE];
+        content[first - first % MappedRegistryStore.SLOT_SIZE] = live;
+        Files.write(content, path);
+        try (MappedRegistryStore store = new MappedRegistryStore(path, 1)) {
+            Assert.assertArrayEquals(bytes("second"), store.get("device"));
+        }
+
+        // the new one was only half written: the old one is still there
+        content[second] = 'S';
+        Files.write(content, path);
+        try (MappedRegistryStore store = new MappedRegistryStore(path, 1)) {
+            Assert.assertArrayEquals(bytes("first"), store.get("device"));
+            Assert.assertTrue(store.put("device", bytes("third")));
+            Assert.assertArrayEquals(bytes("third"), store.get("device"));
+        }
+    }
+
+    private static int indexOf(final byte[] content, final byte[] target) {
+        for (int i = 0; i + target.length <= content.length; i++) {
+            if (Arrays.equals(target, Arrays.copyOfRange(content, i, i + target.length))) {
+                return i;
+            }
+        }
+        throw new AssertionError("not found");
+    }
+
+    private static byte[] bytes(final String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,116 @@
+package com.indeed.proctor.common.server;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.indeed.proctor.common.Proctor;
+import com.indeed.proctor.common.RuleEvaluator;
+import com.indeed.proctor.common.model.Allocation;
+import com.indeed.proctor.common.model.Audit;
+import com.indeed.proctor.common.model.ConsumableTestDefinition;
+import com.indeed.proctor.common.model.Range;
+import com.indeed.proctor.common.model.TestBucket;
+import com.indeed.proctor.common.model.TestMatrixArtifact;
+import com.indeed.proctor.common.model.TestType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class TestRegistryCodec {
+
+    @Test
+    public void testRoundTrip() {
+        final Proctor proctor = createProctor("first", "second");
+        final Map<String, String> data = ImmutableMap.of("first", "control", "second", "test");
+        final byte[] packed = RegistryCodec.encode(data, proctor);
+        Assert.assertNotNull(packed);
+        Assert.assertEquals(data, RegistryCodec.decode(packed, proctor));
+    }
+
+    @Test
+    public void testNothingWithoutDefinitions() {
+        final Map<String, String> data = ImmutableMap.of("first", "control");
+        Assert.assertNull(RegistryCodec.encode(data, Proctor.EMPTY));
+        final byte[] packed = RegistryCodec.encode(data, createProctor("first"));
+        Assert.assertNull(RegistryCodec.decode(packed, Proctor.EMPTY));
+    }
+
+    @Test
+    public void testUnknownTestsAreKept() {
+        final Map<String, String> data = ImmutableMap.of("first", "control", "second", "test");
+        final byte[] packed = RegistryCodec.encode(data, createProctor("first", "second"));
+
+        // second is gone from the definitions, but not from the record
+        final Proctor withoutSecond = createProctor("first");
+        final Map<String, String> decoded = RegistryCodec.decode(packed, withoutSecond);
+        Assert.assertEquals(ImmutableMap.of("first", "control", RegistryCodec.toOpaque("second"), "test"), decoded);
+        Assert.assertNull("only known tests are encoded", RegistryCodec.encode(ImmutableMap.of("second", "test"), withoutSecond));
+
+        // and it comes back with its bucket
+        final byte[] repacked = RegistryCodec.encode(decoded, withoutSecond);
+        Assert.assertEquals(data, RegistryCodec.decode(repacked, createProctor("first", "second")));
+    }
+
+    @Test
+    public void testBucketsAreKeptByName() {
+        final byte[] packed = RegistryCodec.encode(ImmutableMap.of("first", "test"), createProctor("first"));
+        // renumbering the buckets doesn't move the device
+        final Proctor renumbered = createProctor(new String[] { "first" }, new int[] { 5, 4, 3 });
+        Assert.assertEquals(ImmutableMap.of("first", "test"), RegistryCodec.decode(packed, renumbered));
+    }
+
+    @Test
+    public void testBucketNamesAreStoredOnce() {
+        final Proctor proctor = createProctor("first", "second", "third");
+        final byte[] packed = RegistryCodec.encode(ImmutableMap.of("first", "control", "second", "control", "third", "test"), proctor);
+        final String content = new String(packed, StandardCharsets.ISO_8859_1);
+        Assert.assertEquals(content.indexOf("control"), content.lastIndexOf("control"));
+        Assert.assertEquals(1 + 1 + 8 + 5 + 1 + 3 * 5, packed.length);
+    }
+
+    @Test
+    public void testBrokenRecords() {
+        final Proctor proctor = createProctor("first");
+        final byte[] packed = RegistryCodec.encode(ImmutableMap.of("first", "control"), proctor);
+        for (int length = 2; length < packed.length; length++) {
+            Assert.assertNull("truncated at " + length, RegistryCodec.decode(Arrays.copyOf(packed, length), proctor));
+        }
+        // a bucket name that isn't in the record
+        Assert.assertNull(RegistryCodec.decode(new byte[] { 1, 0, 1, 0, 0, 0, 0, 0 }, proctor));
+        Assert.assertNull(RegistryCodec.decode(new byte[] { 1, (byte) 0xFF, (byte) 0xFF }, proctor));
+        Assert.assertNull(RegistryCodec.decode(new byte[] { 2 }, proctor));
+        Assert.assertNull(RegistryCodec.decode(new byte[0], proctor));
+        Assert.assertEquals(Collections.emptyMap(), RegistryCodec.decode(new byte[] { 1, 0, 0 }, proctor));
+    }
+
+    private static Proctor createProctor(final String... testIds) {
+        return createProctor(testIds, new int[] { -1, 0, 1 });
+    }
+
+    private static Proctor createProctor(final String[] testIds, final int[] values) {
+        final TestMatrixArtifact matrix = new TestMatrixArtifact();
+        final Audit audit = new Audit();
+        audit.setVersion("1");
+        matrix.setAudit(audit);
+        final Map<String, ConsumableTestDefinition> testMap = Maps.newLinkedHashMap();
+        for (final String testId : testIds) {
+            final List<TestBucket> buckets = Lists.newArrayList(
+                    new TestBucket("inactive", values[0], "", null),
+                    new TestBucket("control", values[1], "", null),
+                    new TestBucket("test", values[2], "", null));
+            final List<Allocation> allocations = Lists.newArrayList(
+                    new Allocation(null, Lists.newArrayList(new Range(values[0], 0.0), new Range(values[1], 0.5), new Range(values[2], 0.5))));
+            final ConsumableTestDefinition testDefinition = new ConsumableTestDefinition(
+                    "1", null, TestType.DEVICE_ID, testId, buckets, allocations, Collections.<String, Object>emptyMap(), "");
+            testDefinition.setWhiteList(Collections.<String, TestBucket>emptyMap());
+            testMap.put(testId, testDefinition);
+        }
+        matrix.setTests(testMap);
+        return Proctor.construct(matrix, null, RuleEvaluator.defaultFunctionMapperBuilder().build());
+    }
+}
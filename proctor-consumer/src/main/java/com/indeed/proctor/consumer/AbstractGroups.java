@@ -22,10 +22,7 @@ public abstract class AbstractGroups {
     protected AbstractGroups(final ProctorResult proctorResult) {
         this.proctorResult = proctorResult;
         this.buckets = Maps.newLinkedHashMap();
-        for (final Entry<String, TestBucket> entry : proctorResult.getBuckets().entrySet()) {
-            final TestBucket testBucket = entry.getValue();
-            this.buckets.put(entry.getKey(), testBucket);
-        }
+        proctorResult.forEachBucket(this.buckets::put);
     }
 
     public Map<String, String> getTestVersions() {
@@ -255,13 +252,12 @@ public abstract class AbstractGroups {
      * @return a list of 2-element lists that hold the bucketValue and payloadValue for each test in alphabetical order
      */
     public <E extends Test> List<List<Object>> getJavaScriptConfig(final E[] tests) {
-        final Map<String, TestBucket> buckets = getProctorResult().getBuckets();
         final List<List<Object>> groups = new ArrayList<List<Object>>(tests.length);
         for (final E test : tests) {
             final String testName = test.getName();
             final Integer bucketValue = getValue(testName, test.getFallbackValue());
             final Object payloadValue;
-            final TestBucket testBucket = buckets.get(testName);
+            final TestBucket testBucket = proctorResult.getBucket(testName);
             if (testBucket != null && testBucket.getPayload() != null) {
                 final Payload payload = testBucket.getPayload();
                 payloadValue = payload.fetchAValue();